@@ -0,0 +1,162 @@
+/*
+ * Copyright 2007-2009 Medsea Business Solutions S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.medsea.mimeutil;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * A bounded cache of the MimeType(s) the registered MimeDetector(s) returned for a file.
+ * It is used by MimeUtil2 when a cache size has been set using MimeUtil2.setCacheSize(int).
+ * </p>
+ * <p>
+ * An entry is only used while the length and last modified time of the file are the same
+ * as they were when the entry was made. A repeated lookup of an unchanged file only has to
+ * ask the file system for these instead of running every MimeDetector against the file again.
+ * When the cache is full the least recently used entry is evicted.
+ * </p>
+ * <p>
+ * Entries are keyed by the canonical path of the file plus the name it was looked up with. Several
+ * MimeDetector(s) only look at the name, so a link named differently to the file it points to
+ * must not share its entry.
+ * </p>
+ */
+class MimeTypeCache {
+
+	private final Map entries;
+
+	private long hits;
+	private long misses;
+
+	// Incremented by clear() so that results detected before the cache was cleared are not added afterwards
+	private int generation;
+
+	MimeTypeCache(final int maxSize) {
+		this.entries = new LinkedHashMap(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(final Map.Entry eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Get the key for a file
+	 * @param file the file being looked up
+	 * @param byName true if the lookup is by file name rather than by File
+	 * @return the key
+	 */
+	static String getKey(final File file, final boolean byName) {
+		String path;
+		try {
+			path = file.getCanonicalPath();
+		}catch(IOException e) {
+			path = file.getAbsolutePath();
+		}
+		return (byName ? "N:" : "F:") + file.getName() + ':' + path;
+	}
+
+	/**
+	 * Get a copy of the cached MimeType(s) for a key
+	 * @param key a key from getKey(File, boolean)
+	 * @param length the current length of the file
+	 * @param lastModified the current last modified time of the file
+	 * @return copies of the cached MimeType(s) or null if there is no entry for this version of the file
+	 */
+	synchronized Collection get(final String key, final long length, final long lastModified) {
+		Entry entry = (Entry)entries.get(key);
+		if(entry == null || entry.length != length || entry.lastModified != lastModified) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return copy(entry.mimeTypes);
+	}
+
+	/**
+	 * Add the MimeType(s) detected for a file. The MimeType(s) are copied.
+	 * @param key a key from getKey(File, boolean)
+	 * @param length the length of the file before detection started
+	 * @param lastModified the last modified time of the file before detection started
+	 * @param generation the value of getGeneration() before detection started
+	 * @param mimeTypes the detected MimeType(s)
+	 */
+	synchronized void put(final String key, final long length, final long lastModified, final int generation, final Collection mimeTypes) {
+		if(generation != this.generation) {
+			return;
+		}
+		Entry entry = new Entry();
+		entry.length = length;
+		entry.lastModified = lastModified;
+		entry.mimeTypes = copy(mimeTypes);
+		entries.put(key, entry);
+	}
+
+	synchronized int getGeneration() {
+		return generation;
+	}
+
+	synchronized void clear() {
+		generation++;
+		entries.clear();
+	}
+
+	synchronized int size() {
+		return entries.size();
+	}
+
+	synchronized long getHits() {
+		return hits;
+	}
+
+	synchronized long getMisses() {
+		return misses;
+	}
+
+	/*
+	 * MimeTypeHashSet changes the specificity of the MimeType(s) added to it so both the cached
+	 * and returned MimeType(s) must be copies. Some MimeDetector(s) return Strings, these are left as they are.
+	 */
+	private static Collection copy(final Collection mimeTypes) {
+		Collection copy = new ArrayList(mimeTypes.size());
+		for(Iterator it = mimeTypes.iterator(); it.hasNext();) {
+			Object mimeType = it.next();
+			if(mimeType instanceof TextMimeType) {
+				TextMimeType textMimeType = new TextMimeType((MimeType)mimeType);
+				textMimeType.setEncoding(((TextMimeType)mimeType).getEncoding());
+				copy.add(textMimeType);
+			} else if(mimeType instanceof MimeType) {
+				copy.add(new MimeType((MimeType)mimeType));
+			} else {
+				copy.add(mimeType);
+			}
+		}
+		return copy;
+	}
+
+	private static class Entry {
+		long length;
+		long lastModified;
+		Collection mimeTypes;
+	}
+}
@@ -144,7 +144,6 @@ class MimeTypeHashSet implements Set, Collection {
 				// We already have an entry so get it and update the specificity
 				updateSpecificity((MimeType)arg0);
 			}
-			MimeUtil.addKnownMimeType((MimeType)arg0);
 			return hashSet.add(arg0);
 
 		} else if(arg0 instanceof Collection) {
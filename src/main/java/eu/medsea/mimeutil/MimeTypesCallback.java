@@ -0,0 +1,47 @@
+/*
+ * Copyright 2007-2009 Medsea Business Solutions S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.medsea.mimeutil;
+
+import java.util.Collection;
+
+/**
+ * <p>
+ * Implemented by callers of MimeUtil2.getMimeTypes(Iterator, MimeTypesCallback) to receive the
+ * MimeType(s) of each File or file name as soon as it has been detected.
+ * </p>
+ * <p>
+ * Items are detected by several threads at once, so the methods of this interface are called
+ * concurrently and in no particular order. Use the index to tell where an item came in the input.
+ * Implementations must be thread safe.
+ * </p>
+ */
+public interface MimeTypesCallback {
+	/**
+	 * Called once for each item that was detected
+	 * @param index position of the item in the input, starting at 0
+	 * @param item the File or String file name taken from the input
+	 * @param mimeTypes the Collection returned by MimeUtil2.getMimeTypes(...) for the item
+	 */
+	public void mimeTypes(final int index, final Object item, final Collection mimeTypes);
+
+	/**
+	 * Called instead of mimeTypes(...) for an item that could not be detected
+	 * @param index position of the item in the input, starting at 0
+	 * @param item the object taken from the input
+	 * @param e the reason detection failed
+	 */
+	public void error(final int index, final Object item, final MimeException e);
+}
@@ -21,6 +21,7 @@ import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -37,6 +38,7 @@ import java.util.zip.ZipException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import eu.medsea.mimeutil.detector.MimeDetectionContext;
 import eu.medsea.mimeutil.detector.MimeDetector;
 import eu.medsea.util.EncodingGuesser;
 import eu.medsea.util.StringUtil;
@@ -111,15 +113,29 @@ public class MimeUtil2 {
 
 	private static final Pattern mimeSplitter = Pattern.compile("[/;]++");
 
-	// All mime types known to the utility. This is synchronised for multi-threaded use
-	// and ALL instances of MimeUtil2 share this list.
-	private static Map mimeTypes = Collections.synchronizedMap(new HashMap());
+	// All mime types known to the utility keyed by media type, each value being an unmodifiable
+	// Set of sub types. ALL instances of MimeUtil2 share this Map. It is never changed once published,
+	// adding a new MIME type copies it under the lock, so lookups never block.
+	private static volatile Map mimeTypes = Collections.unmodifiableMap(new HashMap());
+
+	static {
+		// These can be returned by getMimeTypes(...) without any MimeDetector having loaded them
+		addKnownMimeType(UNKNOWN_MIME_TYPE);
+		addKnownMimeType(DIRECTORY_MIME_TYPE);
+		addKnownMimeType("text/plain");
+	}
 
 	// the native byte order of the underlying OS. "BIG" or "little" Endian
 	private static ByteOrder nativeByteOrder = ByteOrder.nativeOrder();
 
 	private MimeDetectorRegistry mimeDetectorRegistry = new MimeDetectorRegistry();
 
+	// Optional cache of the MimeType(s) detected for files, null unless setCacheSize(int) has been called
+	private volatile MimeTypeCache mimeTypeCache;
+
+	// Number of threads used by the batch getMimeTypes(...) methods
+	private volatile int parallelism = Runtime.getRuntime().availableProcessors();
+
 	/**
 	 * While MimeType(s) are being loaded by the MimeDetector(s) they should be
 	 * added to the list of known MIME types. It is not mandatory for MimeDetector(s)
@@ -146,7 +162,10 @@ public class MimeUtil2 {
 	 * @see #isMimeTypeKnown(MimeType mimetType)
 	 */
 	public static void addKnownMimeType(final MimeType mimeType) {
-		addKnownMimeType(mimeType.toString());
+		if(isMimeTypeKnown(mimeType)) {
+			return;
+		}
+		addKnownMimeType(mimeType.getMediaType(), mimeType.getSubType());
 	}
 
 
@@ -177,19 +196,24 @@ public class MimeUtil2 {
 	 */
 	public static void addKnownMimeType(final String mimeType) {
 		try {
-
-			String key = getMediaType(mimeType);
-			Set s = (Set) mimeTypes.get(key);
-			if (s == null) {
-				s = new TreeSet();
-			}
-			s.add(getSubType(mimeType));
-			mimeTypes.put(key, s);
+			addKnownMimeType(new MimeType(mimeType));
 		} catch (MimeException ignore) {
 			// A couple of entries in the magic mime file don't follow the rules
 			// so ignore them
 		}
 	}
+
+	private static synchronized void addKnownMimeType(final String mediaType, final String subType) {
+		Set s = (Set) mimeTypes.get(mediaType);
+		if(s != null && s.contains(subType)) {
+			return;
+		}
+		Set subTypes = s == null ? new TreeSet() : new TreeSet(s);
+		subTypes.add(subType);
+		Map map = new HashMap(mimeTypes);
+		map.put(mediaType, Collections.unmodifiableSet(subTypes));
+		mimeTypes = Collections.unmodifiableMap(map);
+	}
 	
 	/**
 	 * Returns a copy of the Collection of currently known MIME types as strings that have been 
@@ -197,11 +221,12 @@ public class MimeUtil2 {
 	 */
 	public static Collection getKnownMimeTypes() {
 		Collection mimeTypes = new ArrayList();
-		Iterator i = MimeUtil2.mimeTypes.keySet().iterator();
+		Map knownMimeTypes = MimeUtil2.mimeTypes;
+		Iterator i = knownMimeTypes.keySet().iterator();
 		while(i.hasNext()) {
 			// Iterate through each set and compose the MIME types
 			String mediaType = (String)i.next();
-			Iterator it = ((Set)MimeUtil2.mimeTypes.get(mediaType)).iterator();
+			Iterator it = ((Set)knownMimeTypes.get(mediaType)).iterator();
 			while(it.hasNext()) {
 				mimeTypes.add(mediaType + "/" + (String)it.next());
 			}
@@ -219,7 +244,9 @@ public class MimeUtil2 {
 	 * @see MimeDetector
 	 */
 	public MimeDetector registerMimeDetector(final String mimeDetector) {
-		return mimeDetectorRegistry.registerMimeDetector(mimeDetector);
+		MimeDetector md = mimeDetectorRegistry.registerMimeDetector(mimeDetector);
+		clearCache();
+		return md;
 	}
 
 	/**
@@ -347,6 +374,72 @@ public class MimeUtil2 {
 		return mimeDetectorRegistry.getMimeDetector(name);
 	}
 
+	/**
+	 * <p>
+	 * Cache the MimeType(s) detected by getMimeTypes(File) and getMimeTypes(String) for up to size files.
+	 * A cached result is used for as long as the length and last modified time of the file do not change,
+	 * so repeated lookups of an unchanged file do not run the registered MimeDetector(s) again.
+	 * When the cache is full the least recently used file is dropped from it.
+	 * </p>
+	 * <p>
+	 * The cache is cleared whenever a MimeDetector is registered or unregistered. Call clearCache() if you change
+	 * anything else that affects detection, such as the supported encodings of the EncodingGuesser.
+	 * Caching is off by default.
+	 * </p>
+	 * @param size the maximum number of files to cache. 0 or less turns caching off and discards the cache.
+	 */
+	public void setCacheSize(final int size) {
+		mimeTypeCache = size > 0 ? new MimeTypeCache(size) : null;
+	}
+
+	/**
+	 * Remove all entries from the cache set up by setCacheSize(int). The hit and miss counts are kept.
+	 */
+	public void clearCache() {
+		MimeTypeCache cache = mimeTypeCache;
+		if(cache != null) {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * Get the number of lookups answered from the cache since setCacheSize(int) was called
+	 * @return number of cache hits, 0 if caching is off
+	 */
+	public long getCacheHits() {
+		MimeTypeCache cache = mimeTypeCache;
+		return cache == null ? 0 : cache.getHits();
+	}
+
+	/**
+	 * Get the number of lookups that had to run the MimeDetector(s) since setCacheSize(int) was called
+	 * @return number of cache misses, 0 if caching is off
+	 */
+	public long getCacheMisses() {
+		MimeTypeCache cache = mimeTypeCache;
+		return cache == null ? 0 : cache.getMisses();
+	}
+
+	/*
+	 * Get the MimeType(s) from the registered MimeDetector(s) for a file or file name, using the cache if there is one
+	 */
+	private Collection getDetectedMimeTypes(final File file, final String fileName) throws MimeException {
+		MimeTypeCache cache = mimeTypeCache;
+		if(cache == null) {
+			return fileName == null ? mimeDetectorRegistry.getMimeTypes(file) : mimeDetectorRegistry.getMimeTypes(fileName);
+		}
+		String key = MimeTypeCache.getKey(file, fileName != null);
+		long length = file.length();
+		long lastModified = file.lastModified();
+		Collection mimeTypes = cache.get(key, length, lastModified);
+		if(mimeTypes == null) {
+			int generation = cache.getGeneration();
+			mimeTypes = fileName == null ? mimeDetectorRegistry.getMimeTypes(file) : mimeDetectorRegistry.getMimeTypes(fileName);
+			cache.put(key, length, lastModified, generation, mimeTypes);
+		}
+		return mimeTypes;
+	}
+
 	/**
 	 * Get a Collection of possible MimeType(s) that this byte array could represent
 	 * according to the registered MimeDetector(s). If no MimeType(s) are detected
@@ -441,7 +534,7 @@ public class MimeUtil2 {
 				mimeTypes.add(MimeUtil2.DIRECTORY_MIME_TYPE);
 			} else {
 				// Defer this call to the file name and stream methods
-				mimeTypes.addAll(mimeDetectorRegistry.getMimeTypes(file));
+				mimeTypes.addAll(getDetectedMimeTypes(file, null));
 
 				// We don't want the unknownMimeType added to the collection by MimeDetector(s)
 				mimeTypes.remove(unknownMimeType);
@@ -556,7 +649,7 @@ public class MimeUtil2 {
 			if(file.isDirectory()) {
 				mimeTypes.add(MimeUtil2.DIRECTORY_MIME_TYPE);
 			} else {
-				mimeTypes.addAll(mimeDetectorRegistry.getMimeTypes(fileName));
+				mimeTypes.addAll(getDetectedMimeTypes(file, fileName));
 
 				// We don't want the unknownMimeType added to the collection by MimeDetector(s)
 				mimeTypes.remove(unknownMimeType);
@@ -621,6 +714,188 @@ public class MimeUtil2 {
 		return mimeTypes;
 	}
 
+	/**
+	 * Get the matching mime types for each of a Collection of File(s) and/or String file names.
+	 * The items are detected in parallel using up to getParallelism() threads, see
+	 * getMimeTypes(Iterator, MimeTypesCallback).
+	 * @param items a Collection of File and/or String objects. It must not be changed until this method returns.
+	 * @return a List holding the Collection of matching MimeType(s) for each item, in the same order as the items
+	 * @throws MimeException if any of the items could not be detected. This is the first failure
+	 * that occurred and is only thrown once all of the other items have been detected. Also thrown,
+	 * without waiting for the other items, if detection fails in a way that is not specific to one item.
+	 */
+	public final List getMimeTypes(final Collection items) throws MimeException
+	{
+		final Collection [] results = new Collection [items.size()];
+		final MimeException [] failure = new MimeException [1];
+		// No point starting more threads than there are items
+		detect(items.iterator(), new MimeTypesCallback() {
+			public void mimeTypes(final int index, final Object item, final Collection mimeTypes) {
+				results[index] = mimeTypes;
+			}
+			public void error(final int index, final Object item, final MimeException e) {
+				synchronized(failure) {
+					if(failure[0] == null) {
+						failure[0] = e;
+					}
+				}
+			}
+		}, Math.min(parallelism, results.length));
+		// The worker threads have all been joined so their results are visible here
+		if(failure[0] != null) {
+			throw failure[0];
+		}
+		return Arrays.asList(results);
+	}
+
+	/**
+	 * <p>
+	 * Detect the mime types of each File or String file name returned by an Iterator and hand the results to
+	 * a callback as soon as each one is known. This lets a very large number of files be processed without
+	 * holding all of the results in memory.
+	 * </p>
+	 * <p>
+	 * Up to getParallelism() threads take items from the Iterator in turn and each runs the normal
+	 * getMimeTypes(File) or getMimeTypes(String) method on the item it took. Only one item per thread
+	 * is in progress at any time, so the Iterator can generate its items lazily. This method returns
+	 * when the Iterator is exhausted and every item has been handed to the callback.
+	 * </p>
+	 * @param items an Iterator over File and/or String objects. It is only ever accessed by one thread at a time.
+	 * @param callback receives the result for each item. It is called concurrently from several threads.
+	 * @throws MimeException if the calling thread is interrupted while waiting for the items to be detected,
+	 * or if the Iterator, the callback or the detection of an item throws anything other than an Exception
+	 * that the callback's error(...) method is given. This is the first such failure of any of the threads.
+	 * No further items are taken from the Iterator once this happens.
+	 */
+	public final void getMimeTypes(final Iterator items, final MimeTypesCallback callback) throws MimeException
+	{
+		detect(items, callback, parallelism);
+	}
+
+	private void detect(final Iterator items, final MimeTypesCallback callback, final int threadCount) throws MimeException
+	{
+		BatchWorker worker = new BatchWorker(items, callback);
+		if(threadCount <= 1) {
+			// Nothing to gain from another thread so do it all on this one
+			worker.run();
+			worker.rethrowFailure();
+			return;
+		}
+		Thread [] threads = new Thread [threadCount];
+		for(int i = 0; i < threadCount; i++) {
+			threads[i] = new Thread(worker, "MimeUtil2-batch-" + i);
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+		try {
+			for(int i = 0; i < threadCount; i++) {
+				threads[i].join();
+			}
+		}catch(InterruptedException e) {
+			worker.stop();
+			Thread.currentThread().interrupt();
+			throw new MimeException("Interrupted while waiting for batch detection to complete.", e);
+		}
+		worker.rethrowFailure();
+	}
+
+	/**
+	 * Set the number of threads used by the batch getMimeTypes(...) methods.
+	 * The default is the number of processors available to the JVM. When detection is mostly waiting for
+	 * the disk, as it is with large numbers of files on slow or networked storage, more threads than
+	 * processors will keep more reads in flight.
+	 * @param parallelism the number of threads. Values below 1 are treated as 1 which detects all items
+	 * on the calling thread.
+	 */
+	public void setParallelism(final int parallelism) {
+		this.parallelism = parallelism < 1 ? 1 : parallelism;
+	}
+
+	/**
+	 * Get the number of threads used by the batch getMimeTypes(...) methods
+	 * @return the number of threads
+	 */
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/*
+	 * Shared by all threads of one batch. Each thread repeatedly takes the next item from the Iterator
+	 * and detects it until there are no more items.
+	 */
+	private class BatchWorker implements Runnable {
+		private final Iterator items;
+		private final MimeTypesCallback callback;
+		private int next;
+		private volatile boolean stopped;
+		// The first failure that ended one of the threads. Guarded by this.
+		private Throwable failure;
+
+		BatchWorker(final Iterator items, final MimeTypesCallback callback) {
+			this.items = items;
+			this.callback = callback;
+		}
+
+		void stop() {
+			stopped = true;
+		}
+
+		// Throw the first failure of any thread now that all of them have finished
+		synchronized void rethrowFailure() throws MimeException {
+			if(failure instanceof MimeException) {
+				throw (MimeException)failure;
+			}
+			if(failure != null) {
+				throw new MimeException("Batch detection failed.", failure);
+			}
+		}
+
+		public void run() {
+			try {
+				detectItems();
+			}catch(Throwable t) {
+				// Anything from the Iterator, the callback or an Error ends the whole batch
+				synchronized(this) {
+					if(failure == null) {
+						failure = t;
+					}
+				}
+				stop();
+			}
+		}
+
+		private void detectItems() {
+			while(!stopped) {
+				Object item;
+				int index;
+				synchronized(this) {
+					if(!items.hasNext()) {
+						return;
+					}
+					item = items.next();
+					index = next++;
+				}
+				Collection mimeTypes;
+				try {
+					if(item instanceof File) {
+						mimeTypes = getMimeTypes((File)item);
+					} else if(item instanceof String) {
+						mimeTypes = getMimeTypes((String)item);
+					} else {
+						throw new MimeException("Batch items must be a File or a String not [" + item + "].");
+					}
+				}catch(MimeException e) {
+					callback.error(index, item, e);
+					continue;
+				}catch(RuntimeException e) {
+					callback.error(index, item, new MimeException(e));
+					continue;
+				}
+				callback.mimeTypes(index, item, mimeTypes);
+			}
+		}
+	}
+
 	/**
 	 * Get the native byte order of the OS on which you are running. It will be
 	 * either big or little endian. This is used internally for the magic mime
@@ -740,15 +1015,11 @@ public class MimeUtil2 {
 	 * @see #addKnownMimeType(String mimetype)
 	 */
 	public static boolean isMimeTypeKnown(final MimeType mimeType) {
-		try {
-			Set s = (Set) mimeTypes.get(mimeType.getMediaType());
-			if (s == null) {
-				return false;
-			}
-			return s.contains(mimeType.getSubType());
-		} catch (MimeException e) {
+		Set s = (Set) mimeTypes.get(mimeType.getMediaType());
+		if (s == null) {
 			return false;
 		}
+		return s.contains(mimeType.getSubType());
 	}
 
 	/**
@@ -783,7 +1054,9 @@ public class MimeUtil2 {
 	 * @return the MimeDetector that was removed from the registry else null.
 	 */
 	public MimeDetector unregisterMimeDetector(final MimeDetector mimeDetector) {
-		return mimeDetectorRegistry.unregisterMimeDetector(mimeDetector);
+		MimeDetector md = mimeDetectorRegistry.unregisterMimeDetector(mimeDetector);
+		clearCache();
+		return md;
 	}
 
 	/**
@@ -792,7 +1065,9 @@ public class MimeUtil2 {
 	 * @return the MimeDetector that was removed from the registry else null.
 	 */
 	public MimeDetector unregisterMimeDetector(final String mimeDetector) {
-		return mimeDetectorRegistry.unregisterMimeDetector(mimeDetector);
+		MimeDetector md = mimeDetectorRegistry.unregisterMimeDetector(mimeDetector);
+		clearCache();
+		return md;
 	}
 
 	/**
@@ -947,8 +1222,12 @@ class MimeDetectorRegistry {
 	 */
 	private TextMimeDetector TextMimeDetector = new TextMimeDetector(1);
 
-
-	private Map mimeDetectors = new TreeMap();
+	/**
+	 * The registered MimeDetector(s) in name order. The Map is never changed once it has been
+	 * published here. Registering or unregistering a MimeDetector copies the Map and swaps in the
+	 * new copy so that detection can iterate over whatever snapshot it read without locking.
+	 */
+	private volatile Map mimeDetectors = Collections.unmodifiableMap(new TreeMap());
 
 	/**
 	 * Use the fully qualified name of a MimeDetector and try to instantiate it if
@@ -957,7 +1236,7 @@ class MimeDetectorRegistry {
 	 * @param mimeDetector
 	 * @return MimeDetector registered under this name. Returns null if an exception occurs
 	 */
-	MimeDetector registerMimeDetector(final String mimeDetector) {
+	synchronized MimeDetector registerMimeDetector(final String mimeDetector) {
 		if(mimeDetectors.containsKey(mimeDetector)) {
 			log.warn("MimeDetector [" + mimeDetector + "] will not be registered as a MimeDetector with this name is already registered.");
 			return (MimeDetector)mimeDetectors.get(mimeDetector);
@@ -969,7 +1248,9 @@ class MimeDetectorRegistry {
 			if(log.isDebugEnabled()) {
 				log.debug("Registering MimeDetector with name [" + md.getName() + "] and description [" + md.getDescription() + "]");
 			}
-			mimeDetectors.put(mimeDetector, md);
+			Map detectors = new TreeMap(mimeDetectors);
+			detectors.put(mimeDetector, md);
+			mimeDetectors = Collections.unmodifiableMap(detectors);
 			return md;
 		}catch(Exception e) {
 			log.error("Exception while registering MimeDetector [" + mimeDetector + "].", e);
@@ -984,18 +1265,20 @@ class MimeDetectorRegistry {
 
 	Collection getMimeTypes(final byte [] data) throws MimeException
 	{
+		// Work on one snapshot of the registered MimeDetector(s) for the whole call
+		Map detectors = mimeDetectors;
 		Collection mimeTypes = new ArrayList();
-		try {
-			if(!EncodingGuesser.getSupportedEncodings().isEmpty()) {
-				mimeTypes = TextMimeDetector.getMimeTypes(data);
-			}
-		}catch(UnsupportedOperationException ignore) {
-			// The TextMimeDetector will throw this if it decides
+		if(!EncodingGuesser.getSupportedEncodings().isEmpty()) {
+			// The TextMimeDetector returns an empty Collection if it decides
 			// the content is not text
+			mimeTypes = TextMimeDetector.getMimeTypes(data);
 		}
-		for(Iterator it  = mimeDetectors.values().iterator();it.hasNext();) {
+		for(Iterator it  = detectors.values().iterator();it.hasNext();) {
 			try {
 				MimeDetector md = (MimeDetector)it.next();
+				if(!md.supports(MimeDetector.INPUT_BYTE_ARRAY)) {
+					continue;
+				}
 				mimeTypes.addAll(md.getMimeTypes(data));
 			}catch(UnsupportedOperationException ignore) {
 				// We ignore this as it indicates that this MimeDetector does not support
@@ -1011,18 +1294,20 @@ class MimeDetectorRegistry {
 
 	Collection getMimeTypes(final String fileName) throws MimeException
 	{
+		// Work on one snapshot of the registered MimeDetector(s) for the whole call
+		Map detectors = mimeDetectors;
 		Collection mimeTypes = new ArrayList();
-		try {
-			if(!EncodingGuesser.getSupportedEncodings().isEmpty()) {
-				mimeTypes = TextMimeDetector.getMimeTypes(fileName);
-			}
-		}catch(UnsupportedOperationException ignore) {
-			// The TextMimeDetector will throw this if it decides
+		if(!EncodingGuesser.getSupportedEncodings().isEmpty()) {
+			// The TextMimeDetector returns an empty Collection if it decides
 			// the content is not text
+			mimeTypes = TextMimeDetector.getMimeTypes(fileName);
 		}
-		for(Iterator it  = mimeDetectors.values().iterator();it.hasNext();) {
+		for(Iterator it  = detectors.values().iterator();it.hasNext();) {
 			try {
 				MimeDetector md = (MimeDetector)it.next();
+				if(!md.supports(MimeDetector.INPUT_FILE_NAME)) {
+					continue;
+				}
 				mimeTypes.addAll(md.getMimeTypes(fileName));
 			}catch(UnsupportedOperationException usoe) {
 				// We ignore this as it indicates that this MimeDetector does not support
@@ -1036,19 +1321,37 @@ class MimeDetectorRegistry {
 
 	Collection getMimeTypes(final File file) throws MimeException
 	{
-		Collection mimeTypes = new ArrayList();
-		try {
-			if(!EncodingGuesser.getSupportedEncodings().isEmpty()) {
-				mimeTypes = TextMimeDetector.getMimeTypes(file);
+		// Work on one snapshot of the registered MimeDetector(s) for the whole call
+		Map detectors = mimeDetectors;
+		// Work out the largest header any of the MimeDetector(s) want to see so that
+		// the file is only opened and read once for all of them
+		boolean textEnabled = !EncodingGuesser.getSupportedEncodings().isEmpty();
+		int headerLength = textEnabled ? TextMimeDetector.getHeaderLength() : 0;
+		for(Iterator it  = detectors.values().iterator();it.hasNext();) {
+			MimeDetector md = (MimeDetector)it.next();
+			if(!md.supports(MimeDetector.INPUT_FILE)) {
+				continue;
 			}
-		}catch(UnsupportedOperationException ignore) {
-			// The TextMimeDetector will throw this if it decides
+			int len = md.getHeaderLength();
+			if(len > headerLength) {
+				headerLength = len;
+			}
+		}
+		MimeDetectionContext context = new MimeDetectionContext(file, headerLength);
+
+		Collection mimeTypes = new ArrayList();
+		if(textEnabled) {
+			// The TextMimeDetector returns an empty Collection if it decides
 			// the content is not text
+			mimeTypes = TextMimeDetector.getMimeTypes(context);
 		}
-		for(Iterator it  = mimeDetectors.values().iterator();it.hasNext();) {
+		for(Iterator it  = detectors.values().iterator();it.hasNext();) {
 			try {
 				MimeDetector md = (MimeDetector)it.next();
-				mimeTypes.addAll(md.getMimeTypes(file));
+				if(!md.supports(MimeDetector.INPUT_FILE)) {
+					continue;
+				}
+				mimeTypes.addAll(md.getMimeTypes(context));
 			}catch(UnsupportedOperationException usoe) {
 				// We ignore this as it indicates that this MimeDetector does not support
 				// Getting mime types from streams
@@ -1061,18 +1364,20 @@ class MimeDetectorRegistry {
 
 	Collection getMimeTypes(final InputStream in) throws MimeException
 	{
+		// Work on one snapshot of the registered MimeDetector(s) for the whole call
+		Map detectors = mimeDetectors;
 		Collection mimeTypes = new ArrayList();
-		try {
-			if(!EncodingGuesser.getSupportedEncodings().isEmpty()) {
-				mimeTypes = TextMimeDetector.getMimeTypes(in);
-			}
-		}catch(UnsupportedOperationException ignore) {
-			// The TextMimeDetector will throw this if it decides
+		if(!EncodingGuesser.getSupportedEncodings().isEmpty()) {
+			// The TextMimeDetector returns an empty Collection if it decides
 			// the content is not text
+			mimeTypes = TextMimeDetector.getMimeTypes(in);
 		}
-		for(Iterator it  = mimeDetectors.values().iterator();it.hasNext();) {
+		for(Iterator it  = detectors.values().iterator();it.hasNext();) {
 			try {
 				MimeDetector md = (MimeDetector)it.next();
+				if(!md.supports(MimeDetector.INPUT_STREAM)) {
+					continue;
+				}
 				mimeTypes.addAll(md.getMimeTypes(in));
 			}catch(UnsupportedOperationException usoe) {
 				// We ignore this as it indicates that this MimeDetector does not support
@@ -1086,18 +1391,20 @@ class MimeDetectorRegistry {
 
 	Collection getMimeTypes(final URL url) throws MimeException
 	{
+		// Work on one snapshot of the registered MimeDetector(s) for the whole call
+		Map detectors = mimeDetectors;
 		Collection mimeTypes = new ArrayList();
-		try {
-			if(!EncodingGuesser.getSupportedEncodings().isEmpty()) {
-				mimeTypes = TextMimeDetector.getMimeTypes(url);
-			}
-		}catch(UnsupportedOperationException ignore) {
-			// The TextMimeDetector will throw this if it decides
+		if(!EncodingGuesser.getSupportedEncodings().isEmpty()) {
+			// The TextMimeDetector returns an empty Collection if it decides
 			// the content is not text
+			mimeTypes = TextMimeDetector.getMimeTypes(url);
 		}
-		for(Iterator it  = mimeDetectors.values().iterator();it.hasNext();) {
+		for(Iterator it  = detectors.values().iterator();it.hasNext();) {
 			try {
 				MimeDetector md = (MimeDetector)it.next();
+				if(!md.supports(MimeDetector.INPUT_URL)) {
+					continue;
+				}
 				mimeTypes.addAll(md.getMimeTypes(url));
 			}catch(UnsupportedOperationException usoe) {
 				// We ignore this as it indicates that this MimeDetector does not support
@@ -1109,7 +1416,7 @@ class MimeDetectorRegistry {
 		return mimeTypes;
 	}
 
-	MimeDetector unregisterMimeDetector(final String mimeDetector) {
+	synchronized MimeDetector unregisterMimeDetector(final String mimeDetector) {
 		if(mimeDetector == null) {
 			return null;
 		}
@@ -1119,8 +1426,13 @@ class MimeDetectorRegistry {
 		try {
 			MimeDetector md = (MimeDetector)mimeDetectors.get(mimeDetector);
 			if(md != null) {
+				Map detectors = new TreeMap(mimeDetectors);
+				detectors.remove(mimeDetector);
+				mimeDetectors = Collections.unmodifiableMap(detectors);
+				// Detection already running against the old snapshot may still be using this
+				// MimeDetector, which the MimeDetector.delete() contract allows for
 				md.delete();
-				return (MimeDetector)mimeDetectors.remove(mimeDetector);
+				return md;
 			}
 		}catch(Exception e) {
 			log.error("Exception while un-registering MimeDetector [" + mimeDetector + "].", e);
@@ -1141,4 +1453,4 @@ class MimeDetectorRegistry {
 		}
 		return unregisterMimeDetector(mimeDetector.getName());
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
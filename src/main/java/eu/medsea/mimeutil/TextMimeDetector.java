@@ -25,8 +25,14 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
+import java.io.RandomAccessFile;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
@@ -34,8 +40,12 @@ import java.util.Iterator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import eu.medsea.mimeutil.detector.MimeDetectionContext;
 import eu.medsea.mimeutil.detector.MimeDetector;
+import eu.medsea.mimeutil.handler.TextContentMimeHandler;
 import eu.medsea.mimeutil.handler.TextMimeHandler;
+import eu.medsea.util.BufferPool;
+import eu.medsea.util.EncodingClassifier;
 import eu.medsea.util.EncodingGuesser;
 
 /**
@@ -76,6 +86,13 @@ import eu.medsea.util.EncodingGuesser;
  * </p>
  * </p>
  * <p>
+ * The first BUFFER_SIZE bytes of the content decide whether it is text. For a File whose head holds only ASCII characters,
+ * which fit most encodings, windows from the tail and the middle of the file are also looked at using positional reads so that
+ * the cost does not grow with the size of the file. Sampling stops as soon as a window holds other characters or only one
+ * encoding is left, and never reads more than a set number of bytes in all. The TextMimeDetector.setSampling(...) method
+ * changes the size of the windows and this budget, or turns sampling off.
+ * </p>
+ * <p>
  * The methods will do their best to eliminate any binary files before trying to detect an encoding.
  * However, if a binary file contains only a few bytes of data or you are very unlucky it could be
  * mistakenly recognised as a text file and processed by this MimeDetector.
@@ -106,6 +123,11 @@ public final class TextMimeDetector extends MimeDetector {
 	// No text file should have 2 or more consecutive NULL values
 	private static final int MAX_NULL_VALUES = 1;
 
+	// The size of the windows sampled from the tail and the middle of a File and the most bytes,
+	// including the head, read from a File for one detection
+	private static int sampleWindowSize = BUFFER_SIZE;
+	private static int maxSampleBytes = 3 * BUFFER_SIZE;
+
 	private static Collection preferredEncodings = new ArrayList();
 	static {
 		TextMimeDetector.setPreferredEncodings(new String [] {"UTF-16", "UTF-8", "ISO-8859-1", "windows-1252", "US-ASCII"} );
@@ -170,12 +192,13 @@ public final class TextMimeDetector extends MimeDetector {
 			throws UnsupportedOperationException {
 
 		if(!file.exists()) {
-			throw new UnsupportedOperationException("This MimeDetector requires actual content.");
+			// This MimeDetector requires actual content
+			return new ArrayList();
 		}
 		InputStream in = null;
 		try {
 			in = new BufferedInputStream(new FileInputStream(file));
-			return getMimeTypesInputStream(in);
+			return getMimeTypesInputStream(in, file);
 		}catch(UnsupportedOperationException e) {
 			throw e;
 		}catch(Exception e) {
@@ -189,16 +212,43 @@ public final class TextMimeDetector extends MimeDetector {
 		}
 	}
 
+	/**
+	 * We only ever look at the first BUFFER_SIZE bytes of the content
+	 * @see MimeDetector.getHeaderLength()
+	 */
+	public int getHeaderLength() {
+		return TextMimeDetector.BUFFER_SIZE;
+	}
+
+	/**
+	 * Use the header already read by the MimeDetectorRegistry instead of opening the file again
+	 * @see MimeDetector.getMimeTypesContext(MimeDetectionContext context)
+	 */
+	public Collection getMimeTypesContext(MimeDetectionContext context)
+			throws UnsupportedOperationException {
+
+		byte [] header = context.getHeader();
+		if(header == null) {
+			// Missing or unreadable file so let the file method deal with it
+			return getMimeTypesFile(context.getFile());
+		}
+		return getMimeTypes(header, Math.min(context.getLength(), TextMimeDetector.BUFFER_SIZE), context.getFile());
+	}
+
 	/**
 	 * @see MimeDetector.getMimeTypesInputStream(InputStream in)
 	 */
 	public Collection getMimeTypesInputStream(InputStream in)
 			throws UnsupportedOperationException {
+		return getMimeTypesInputStream(in, null);
+	}
+
+	// file is the File the stream reads from, if any, so that more of it can be sampled
+	private Collection getMimeTypesInputStream(InputStream in, File file) {
 
 		int offset = 0;
 		int len = TextMimeDetector.BUFFER_SIZE;
-		byte [] data = new byte [len];
-		byte [] copy = null;
+		byte [] data = BufferPool.borrow(len);
 		// Mark the input stream
 		in.mark(len);
 
@@ -216,16 +266,13 @@ public final class TextMimeDetector extends MimeDetector {
 				offset += bytesRead;
 				restBytesToRead -= bytesRead;
 			}
-			if(offset < len) {
-				copy = new byte[offset];
-			    System.arraycopy( data, 0, copy, 0, offset );
-			}else {
-				copy = data;
-			}
+			// Only the bytes actually read are looked at so data can be handed over as is
+			return getMimeTypes(data, offset, file);
 		}
 		catch(IOException ioe) {
 			throw new MimeException(ioe);
 		} finally {
+			BufferPool.release(data);
 			try {
 				// Reset the input stream to where it was marked.
 				in.reset();
@@ -233,30 +280,48 @@ public final class TextMimeDetector extends MimeDetector {
 				throw new MimeException(e);
 			}
 		}
-		return getMimeTypesByteArray(copy);
 	}
 
 	/**
+	 * Returns an empty Collection if the data is not text. Nothing is thrown for binary data as this is called
+	 * for every detection and most content that is detected is not text.
 	 * @see MimeDetector.getMimeTypesByteArray(byte [] data)
 	 */
 	public Collection getMimeTypesByteArray(byte[] data)
 			throws UnsupportedOperationException {
+		return getMimeTypes(data, data.length, null);
+	}
 
-		// Check if the array contains binary data
-		if(EncodingGuesser.getSupportedEncodings().isEmpty() || isBinary(data)) {
-			throw new UnsupportedOperationException();
-		}
+	// Only the first length bytes of data are looked at. If file is not null data is the head of it
+	// and the rest of the file may be sampled as well.
+	private Collection getMimeTypes(byte [] data, int length, File file) {
 
 		Collection mimeTypes = new ArrayList();
 
-		Collection possibleEncodings = EncodingGuesser.getPossibleEncodings(data);
+		// Check if the array contains binary data
+		if(EncodingGuesser.getSupportedEncodings().isEmpty() || isBinary(data, length)) {
+			return mimeTypes;
+		}
+
+		// One pass over the data classifies it for all of the common encodings at once
+		EncodingClassifier classifier = new EncodingClassifier(data, length);
+		Collection possibleEncodings = classifier.getPossibleEncodings();
 		if(log.isDebugEnabled()) {
 			log.debug("Possible encodings [" + possibleEncodings.size() + "] " + possibleEncodings);
 		}
 
+		if(file != null && !possibleEncodings.isEmpty() && classifier.isAscii()) {
+			// The head fits too many encodings so see what the rest of the file says
+			possibleEncodings = sampleFile(file, length, possibleEncodings);
+			if(possibleEncodings == null) {
+				// The rest of the file is binary
+				return mimeTypes;
+			}
+		}
+
 		if(possibleEncodings.isEmpty()) {
 			// Is not a text file understood by this JVM
-			throw new UnsupportedOperationException();
+			return mimeTypes;
 		}
 
 		String encoding = null;
@@ -274,10 +339,9 @@ public final class TextMimeDetector extends MimeDetector {
 			mimeTypes.add(new TextMimeType("text/plain", encoding));
 		}
 
-		// If none of our preferredEncodings or the default encoding are in the possible encodings list we return the first possibleEncoding;
+		// If none of our preferredEncodings or the default encoding are in the possible encodings list we return the most likely possibleEncoding;
 		if(mimeTypes.isEmpty()) {
-			Iterator it = possibleEncodings.iterator();
-			encoding = (String)it.next();
+			encoding = classifier.getPreferredEncoding(possibleEncodings);
 			mimeTypes.add(new TextMimeType("text/plain", encoding));
 		}
 
@@ -286,15 +350,9 @@ public final class TextMimeDetector extends MimeDetector {
 			return mimeTypes;
 		}
 
-		// String will be passed in as  is currently in the encoding defined by encoding
-		try {
-			int lengthBOM = EncodingGuesser.getLengthBOM(encoding, data);
-			String content = new String(EncodingGuesser.getByteArraySubArray(data, lengthBOM, data.length - lengthBOM), encoding);
-			return fireMimeHandlers(mimeTypes, content);
-		}catch(UnsupportedEncodingException ignore) {
-			// This should never, never, never happen
-		}
-		return mimeTypes;
+		// The content is only decoded, from the encoding defined by encoding, as far as the handlers need it
+		int lengthBOM = EncodingGuesser.getLengthBOM(encoding, data, length);
+		return fireMimeHandlers(mimeTypes, new Content(data, lengthBOM, length - lengthBOM, encoding));
 	}
 
 	/**
@@ -306,7 +364,8 @@ public final class TextMimeDetector extends MimeDetector {
 	 * the text/plain TextMimeType ONLY if the JVM default encoding is not in the list.
 	 *
 	 * If the neither the defaultEncoding or any of these preferred encodings are in
-	 * the list of possible encodings then the first possible encoding will be used.
+	 * the list of possible encodings then the most likely possible encoding will be used.
+	 * @see EncodingClassifier#getPreferredEncoding(Collection)
 	 *
 	 * @param encodings String array of canonical encoding names.
 	 */
@@ -317,6 +376,24 @@ public final class TextMimeDetector extends MimeDetector {
 		}
 	}
 
+	/**
+	 * Set how much of a File, beyond its first BUFFER_SIZE bytes, is sampled when the head holds only ASCII characters.
+	 * A window of up to windowSize bytes is read from the tail of the file and then one from the middle, while the
+	 * total number of bytes read, including the head, stays within maxSampleBytes. The defaults are BUFFER_SIZE
+	 * and 3 times BUFFER_SIZE. Setting either value so low that no window fits turns sampling off.
+	 * Streams and byte arrays are never sampled as they can't be read out of order.
+	 *
+	 * @param windowSize the most bytes read from the tail and from the middle of a file
+	 * @param maxSampleBytes the most bytes read from a file for one detection
+	 */
+	public static void setSampling(int windowSize, int maxSampleBytes) {
+		TextMimeDetector.sampleWindowSize = windowSize;
+		TextMimeDetector.maxSampleBytes = maxSampleBytes;
+		if(log.isDebugEnabled()) {
+			log.debug("Sampling set to windows of [" + windowSize + "] bytes within [" + maxSampleBytes + "] bytes");
+		}
+	}
+
 	/**
 	 * Register a TexMimeHandler(s)
 	 * @param handler to register
@@ -341,6 +418,87 @@ public final class TextMimeDetector extends MimeDetector {
 		return handlers;
 	}
 
+	/*
+	 * Narrow the encodings possible for the head of a file down to those that are also possible for windows of the
+	 * file taken from the tail and then the middle. Returns null if a window is binary. If a window does not fit any
+	 * of the encodings, which can happen if it starts part way through a character, the encodings are left as they are.
+	 */
+	private Collection sampleFile(File file, int headLength, Collection possibleEncodings) {
+
+		long fileLength = file.length();
+		int budget = TextMimeDetector.maxSampleBytes - headLength;
+		int windowSize = Math.min(TextMimeDetector.sampleWindowSize, budget);
+		if(windowSize <= 0 || fileLength <= headLength) {
+			return possibleEncodings;
+		}
+
+		// The windows never overlap the head or each other and the middle one only gets what is left of the budget
+		long tailStart = Math.max(fileLength - windowSize, headLength);
+		long middleStart = Math.max(fileLength / 2 - windowSize / 2, headLength);
+		long middleEnd = Math.min(middleStart + Math.min(windowSize, budget - (fileLength - tailStart)), tailStart);
+		long [] starts = {tailStart, middleStart};
+		long [] ends = {fileLength, middleEnd};
+
+		byte [] window = BufferPool.borrow(windowSize);
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			FileChannel channel = raf.getChannel();
+			for(int i = 0; i < starts.length && starts[i] < ends[i]; i++) {
+				ByteBuffer buffer = ByteBuffer.wrap(window, 0, (int)(ends[i] - starts[i]));
+				while(buffer.hasRemaining() && channel.read(buffer, starts[i] + buffer.position()) >= 0) {
+				}
+
+				// Skip the rest of a UTF-8 character the window may start in
+				int skip = 0;
+				while(skip < 3 && skip < buffer.position() && (window[skip] & 0xC0) == 0x80) {
+					skip++;
+				}
+				int length = buffer.position() - skip;
+				if(length <= 0) {
+					continue;
+				}
+				System.arraycopy(window, skip, window, 0, length);
+
+				if(isBinary(window, length)) {
+					return null;
+				}
+				EncodingClassifier classifier = new EncodingClassifier(window, length);
+				Collection windowEncodings = classifier.getPossibleEncodings();
+				Collection encodings = new ArrayList();
+				for(Iterator it = possibleEncodings.iterator(); it.hasNext();) {
+					Object encoding = it.next();
+					if(windowEncodings.contains(encoding)) {
+						encodings.add(encoding);
+					}
+				}
+				if(log.isDebugEnabled()) {
+					log.debug("Possible encodings after sampling [" + starts[i] + "-" + ends[i] + "] of [" + file + "] " + encodings);
+				}
+				if(encodings.isEmpty()) {
+					break;
+				}
+				possibleEncodings = encodings;
+				if(possibleEncodings.size() == 1 || !classifier.isAscii()) {
+					// Nothing more to learn
+					break;
+				}
+			}
+		}catch(IOException e) {
+			throw new MimeException(e);
+		}finally {
+			BufferPool.release(window);
+			try {
+				if(raf != null) {
+					raf.close();
+				}
+			}catch(Exception ignore) {
+				log.error(ignore.getLocalizedMessage());
+			}
+		}
+		return possibleEncodings;
+	}
+
 	/**
 	 * Give registered TextMimeHandler(s) the opportunity to influence the
 	 * actual mime type before returning from the getMimeTypesXXX(...) methods
@@ -348,14 +506,22 @@ public final class TextMimeDetector extends MimeDetector {
 	 * @param content
 	 * @return
 	 */
-	private Collection fireMimeHandlers(Collection mimeTypes, String content) {
+	private Collection fireMimeHandlers(Collection mimeTypes, Content content) {
 		// We only have one entry in the mimeTypes Collection due to the way
 		// this MimeDetector works.
 		TextMimeType mimeType = (TextMimeType)mimeTypes.iterator().next();
 
 		for(Iterator it = handlers.iterator(); it.hasNext(); ) {
 			TextMimeHandler tmh = (TextMimeHandler)it.next();
-			if(tmh.handle(mimeType, content)) {
+			boolean handled;
+			if(tmh instanceof TextContentMimeHandler) {
+				TextContentMimeHandler tcmh = (TextContentMimeHandler)tmh;
+				handled = tcmh.accepts(mimeType, content.getBytes())
+					&& tcmh.handle(mimeType, content.getChars(tcmh.getContentLength()));
+			} else {
+				handled = tmh.handle(mimeType, content.getString());
+			}
+			if(handled) {
 				// The first handler to return true will short circuit the rest of the handlers
 				break;
 			}
@@ -374,11 +540,11 @@ public final class TextMimeDetector extends MimeDetector {
 	 *
 	 * We will modify this method to include other known sequences as and when we discover them
 	 */
-	private boolean isBinary(byte [] data) {
+	private boolean isBinary(byte [] data, int length) {
 
 		int negCount = 0;
 
-		for(int i = 0; i < data.length; i++) {
+		for(int i = 0; i < length; i++) {
 			if(data[i] == 0) {
 				negCount++;
 			} else {
@@ -390,6 +556,69 @@ public final class TextMimeDetector extends MimeDetector {
 		}
 		return false;
 	}
+
+	/*
+	 * The content handed to the TextMimeHandler(s). It is decoded when a handler first needs it and only as far
+	 * as the handlers ask for. Malformed input is replaced just like new String(...) does.
+	 */
+	private static final class Content {
+
+		private byte [] data;
+		private int offset;
+		private int length;
+		private String encoding;
+
+		// The characters decoded so far and whether they cover all of the content
+		private CharBuffer chars;
+		private boolean complete;
+		private String string;
+
+		Content(byte [] data, int offset, int length, String encoding) {
+			this.data = data;
+			this.offset = offset;
+			this.length = length;
+			this.encoding = encoding;
+		}
+
+		ByteBuffer getBytes() {
+			return ByteBuffer.wrap(data, offset, length).slice().asReadOnlyBuffer();
+		}
+
+		// count is the number of characters wanted or TextContentMimeHandler.ALL_CONTENT
+		CharSequence getChars(int count) {
+			if(chars == null || (!complete && (count < 0 || count > chars.limit()))) {
+				decode(count);
+			}
+			if(count < 0 || count >= chars.limit()) {
+				return chars.duplicate();
+			}
+			return chars.subSequence(0, count);
+		}
+
+		String getString() {
+			if(string == null) {
+				string = getChars(TextContentMimeHandler.ALL_CONTENT).toString();
+			}
+			return string;
+		}
+
+		private void decode(int count) {
+			Charset charset = Charset.forName(encoding);
+			ByteBuffer in = ByteBuffer.wrap(data, offset, length);
+			if(count < 0) {
+				chars = charset.decode(in).asReadOnlyBuffer();
+				complete = true;
+				return;
+			}
+			CharsetDecoder decoder = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			CharBuffer out = CharBuffer.allocate(count);
+			complete = decoder.decode(in, out, true).isUnderflow() && decoder.flush(out).isUnderflow();
+			out.flip();
+			chars = out.asReadOnlyBuffer();
+		}
+	}
 }
 
 
@@ -19,8 +19,10 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
@@ -100,6 +102,10 @@ public class ExtensionMimeDetector extends MimeDetector {
 	// Extension MimeTypes
 	private static Map extMimeTypes;
 
+	// The extension mappings parsed into MimeType [] keyed by extension. This is
+	// built once from extMimeTypes and never modified once published.
+	private static volatile Map compiledMimeTypes;
+
 	public ExtensionMimeDetector() {
 		ExtensionMimeDetector.initMimeTypes();
 	}
@@ -108,6 +114,14 @@ public class ExtensionMimeDetector extends MimeDetector {
 		return "Get the mime types of file extensions";
 	}
 
+	/**
+	 * Only the file name is used so this MimeDetector is not called for streams or byte arrays
+	 * @see MimeDetector#getSupportedInputs()
+	 */
+	public int getSupportedInputs() {
+		return INPUT_FILE_NAME | INPUT_FILE | INPUT_URL;
+	}
+
 	/**
 	 * Get the mime type of a file using extension mappings. The file path
 	 * can be a relative or absolute path or can refer to a completely non-existent file as
@@ -142,37 +156,72 @@ public class ExtensionMimeDetector extends MimeDetector {
 	 * @throws MimeException if errors occur.
 	 */
 	public Collection getMimeTypesFileName(final String fileName) throws MimeException {
-		Collection mimeTypes = new HashSet();
+		Map mimeTypesByExtension = compiledMimeTypes;
 
 		String fileExtension = MimeUtil.getExtension(fileName);
 		while(fileExtension.length() != 0) {
-			String types = null;
 			// First try case sensitive
-			types = (String) extMimeTypes.get(fileExtension);
-			if (types != null) {
-				String [] mimeTypeArray = types.split(",");
-				for(int i = 0; i < mimeTypeArray.length; i++) {
-					mimeTypes.add(new MimeType(mimeTypeArray[i]));
+			MimeType [] types = (MimeType [])mimeTypesByExtension.get(fileExtension);
+			if (types == null) {
+				// Failed to find case sensitive extension so lets try again with
+				// lowercase. toLowerCase() returns the same String if there is nothing
+				// to change in which case the lookup would fail again.
+				String lowerCaseExtension = fileExtension.toLowerCase();
+				if(lowerCaseExtension != fileExtension) {
+					types = (MimeType [])mimeTypesByExtension.get(lowerCaseExtension);
 				}
-				return mimeTypes;
 			}
-			if(mimeTypes.isEmpty()) {
-				// Failed to find case insensitive extension so lets try again with
-				// lowercase
-				types = (String) extMimeTypes.get(fileExtension.toLowerCase());
-				if (types != null) {
-					String [] mimeTypeArray = types.split(",");
-					for(int i = 0; i < mimeTypeArray.length; i++) {
-						mimeTypes.add(new MimeType(mimeTypeArray[i]));
-					}
-					return mimeTypes;
-				}
+			if (types != null) {
+				return copyMimeTypes(types);
 			}
 			fileExtension = MimeUtil.getExtension(fileExtension);
 		}
+		return new HashSet();
+	}
+
+	// The MimeType(s) handed out are copies as their specificity is updated when
+	// they are added to a MimeTypeHashSet.
+	private static Collection copyMimeTypes(MimeType [] types) {
+		Collection mimeTypes = new HashSet();
+		for(int i = 0; i < types.length; i++) {
+			mimeTypes.add(new MimeType(types[i]));
+		}
 		return mimeTypes;
 	}
 
+	/*
+	 * Parse every extension mapping once so that a lookup only has to copy the
+	 * already parsed MimeType(s). A mapping such as "txt=text/plain,text/x-text"
+	 * becomes a MimeType [] of the distinct mime types in the order they are listed.
+	 */
+	private static Map compileMimeTypes(Map mappings) {
+		Map mimeTypesByExtension = new HashMap(mappings.size() * 2);
+		// Mime types listed for more than one extension share the same instance
+		Map mimeTypes = new HashMap();
+		for(Iterator it = mappings.entrySet().iterator(); it.hasNext();) {
+			Map.Entry entry = (Map.Entry)it.next();
+			String [] names = ((String)entry.getValue()).split(",");
+			Collection types = new ArrayList(names.length);
+			for(int i = 0; i < names.length; i++) {
+				MimeType mimeType = (MimeType)mimeTypes.get(names[i]);
+				if(mimeType == null) {
+					try {
+						mimeType = new MimeType(names[i]);
+					}catch(MimeException e) {
+						log.error("Invalid mime type [" + names[i] + "] mapped to extension [" + entry.getKey() + "]. It will be ignored.");
+						continue;
+					}
+					mimeTypes.put(names[i], mimeType);
+				}
+				if(!types.contains(mimeType)) {
+					types.add(mimeType);
+				}
+			}
+			mimeTypesByExtension.put(entry.getKey(), types.toArray(new MimeType [types.size()]));
+		}
+		return mimeTypesByExtension;
+	}
+
 	/*
 	 * This loads the mime-types.properties files that define mime types based
 	 * on file extensions using the following load sequence 1. Loads the
@@ -183,7 +232,11 @@ public class ExtensionMimeDetector extends MimeDetector {
 	 * if one exists 4. locates and loads a file named by the JVM property
 	 * mime-mappings i.e. -Dmime-mappings=../my-mime-types.properties
 	 */
-	private static void initMimeTypes() {
+	private static synchronized void initMimeTypes() {
+		if(compiledMimeTypes != null) {
+			// Already loaded by an earlier instance
+			return;
+		}
 		InputStream is = null;
 		extMimeTypes = new Properties();
 		try {
@@ -285,6 +338,8 @@ public class ExtensionMimeDetector extends MimeDetector {
 				is = closeStream(is);
 			}
 		} finally {
+			compiledMimeTypes = compileMimeTypes(extMimeTypes);
+
 			// Load the mime types into the known mime types map of MimeUtil
 			Iterator it = extMimeTypes.values().iterator();
 			while (it.hasNext()) {
@@ -298,8 +353,8 @@ public class ExtensionMimeDetector extends MimeDetector {
 
 	/**
 	 * This method is required by the abstract MimeDetector class. As we do not support extension mapping of streams
-	 * we just throw an {@link UnsupportedOperationException}. This ensures that the getMimeTypes(...) methods ignore this
-	 * method. We could also have just returned an empty collection.
+	 * we just throw an {@link UnsupportedOperationException}. The getMimeTypes(...) methods never call this as streams
+	 * are not included in getSupportedInputs().
 	 */
 	public Collection getMimeTypesInputStream(InputStream in)
 			throws UnsupportedOperationException {
@@ -308,8 +363,8 @@ public class ExtensionMimeDetector extends MimeDetector {
 
 	/**
 	 * This method is required by the abstract MimeDetector class. As we do not support extension mapping of byte arrays
-	 * we just throw an {@link UnsupportedOperationException}. This ensures that the getMimeTypes(...) methods ignore this
-	 * method. We could also have just returned an empty collection.
+	 * we just throw an {@link UnsupportedOperationException}. The getMimeTypes(...) methods never call this as byte arrays
+	 * are not included in getSupportedInputs().
 	 */
 	public Collection getMimeTypesByteArray(byte[] data)
 			throws UnsupportedOperationException {
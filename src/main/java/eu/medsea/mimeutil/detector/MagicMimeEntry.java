@@ -19,8 +19,6 @@ package eu.medsea.mimeutil.detector;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
@@ -28,7 +26,6 @@ import java.util.List;
 import java.util.Vector;
 
 import eu.medsea.mimeutil.MimeType;
-import eu.medsea.util.StringUtil;
 
 /**
  * A single MagicMime entry from a magic.mime file. This entry can contain
@@ -62,6 +59,11 @@ class MagicMimeEntry {
 
 	boolean isBetween; // used for range checking strings.
 
+	// Parsed from the type when the rule is loaded
+	private long mask = 0xffffffffL;
+	// Number of bytes from checkBytesFrom this entry looks at
+	private int matchLength;
+
 	public MagicMimeEntry(ArrayList entries)
 			throws InvalidMagicMimeEntryException {
 		this(0, null, entries);
@@ -209,6 +211,53 @@ class MagicMimeEntry {
 		}
 
 		initContentNumber();
+		initMatchParameters();
+	}
+
+	/*
+	 * Work out the mask and the number of bytes to look at once when the rule is
+	 * loaded rather than every time it is matched.
+	 */
+	private void initMatchParameters() {
+		switch (type) {
+		case STRING_TYPE: {
+			// The following is not documented in the Magic(5) documentation.
+			// This is an extension to the magic rules and is provided by this
+			// utility.
+			// It allows for better matching of some text based files such as
+			// XML files
+			int index = typeStr.indexOf(">");
+			if (index != -1) {
+				matchLength = Integer.parseInt(typeStr.substring(index + 1,
+						typeStr.length() - 1));
+				isBetween = true;
+			} else {
+				matchLength = content.length();
+			}
+			break;
+		}
+
+		case SHORT_TYPE:
+		case LESHORT_TYPE:
+		case BESHORT_TYPE: {
+			mask = getMask(typeStr);
+			matchLength = 2;
+			break;
+		}
+
+		case LELONG_TYPE:
+		case BELONG_TYPE: {
+			mask = getMask(typeStr);
+			matchLength = 4;
+			break;
+		}
+
+		case BYTE_TYPE: {
+			mask = getMask(typeStr);
+			matchLength = 1;
+			break;
+		}
+		}
 	}
 
 	/**
@@ -313,6 +362,62 @@ class MagicMimeEntry {
 		return mimeType;
 	}
 
+	/**
+	 * Get the only value the byte at getCheckBytesFrom() can have for this entry to match.
+	 * This is used to place the entry in the OffsetByteIndex of the magic rules.
+	 *
+	 * @return the byte value (0 - 255) or -1 if the entry could match more than one value
+	 */
+	int getIndexByte() {
+		if (checkBytesFrom < 0 || typeStr == null || typeStr.indexOf('&') >= 0
+				|| !operation.equals(MagicMimeEntryOperation.EQUALS)) {
+			return -1;
+		}
+		switch (getType()) {
+		case MagicMimeEntry.STRING_TYPE: {
+			if (typeStr.indexOf('>') >= 0 || content.length() == 0
+					|| content.charAt(0) > 0xFF) {
+				return -1;
+			}
+			return content.charAt(0);
+		}
+
+		case MagicMimeEntry.BYTE_TYPE: {
+			if (contentNumber < 0 || contentNumber > 0xFFL) {
+				return -1;
+			}
+			return (int) contentNumber;
+		}
+
+		case MagicMimeEntry.SHORT_TYPE:
+		case MagicMimeEntry.BESHORT_TYPE:
+		case MagicMimeEntry.LESHORT_TYPE: {
+			if (contentNumber < 0 || contentNumber > 0xFFFFL) {
+				return -1;
+			}
+			if (getType() == MagicMimeEntry.LESHORT_TYPE) {
+				return (int) (contentNumber & 0xFF);
+			}
+			return (int) (contentNumber >> 8);
+		}
+
+		case MagicMimeEntry.BELONG_TYPE:
+		case MagicMimeEntry.LELONG_TYPE: {
+			if (contentNumber < 0 || contentNumber > 0xFFFFFFFFL) {
+				return -1;
+			}
+			if (getType() == MagicMimeEntry.LELONG_TYPE) {
+				return (int) (contentNumber & 0xFF);
+			}
+			return (int) (contentNumber >> 24);
+		}
+
+		default: {
+			return -1;
+		}
+		}
+	}
+
 	MagicMimeEntry getMatch(InputStream in) throws IOException {
 		int bytesToRead = getInputStreamMarkLength();
 		in.mark(bytesToRead);
@@ -340,188 +445,42 @@ class MagicMimeEntry {
 		}
 	}
 
-	MagicMimeEntry getMatch(byte[] content) throws IOException {
-		ByteBuffer buf = readBuffer(content);
-		if (buf == null)
+	MagicMimeEntry getMatch(byte[] content) {
+		if (!match(content)) {
 			return null;
-
-		buf.position(0);
-		boolean matches = match(buf);
-		if (matches) {
-			int subLen = subEntries.size();
-			MimeType mimeType = getMimeType();
-			if (subLen > 0) {
-				for (int k = 0; k < subLen; k++) {
-					MagicMimeEntry me = (MagicMimeEntry) subEntries.get(k);
-					MagicMimeEntry matchingEntry = me.getMatch(content);
-					if (matchingEntry != null) {
-						return matchingEntry;
-					}
-				}
-				if (mimeType != null) {
-					return this;
-				}
-			} else {
-				if (mimeType != null)
-					return this;
-			}
 		}
-
-		return null;
-	}
-
-	MagicMimeEntry getMatch(RandomAccessFile raf) throws IOException {
-		ByteBuffer buf = readBuffer(raf);
-		if (buf == null) {
-			return null;
-		}
-		boolean matches = match(buf);
-		if (matches) {
-			MimeType mimeType = getMimeType();
-			if (subEntries.size() > 0) {
-				for (int i = 0; i < subEntries.size(); i++) {
-					MagicMimeEntry me = (MagicMimeEntry) subEntries.get(i);
-					MagicMimeEntry matchingEntry = me.getMatch(raf);
-					if (matchingEntry != null) {
-						return matchingEntry;
-					}
-				}
-				if (mimeType != null) {
-					return this;
-				}
-			} else {
-				if (mimeType != null)
-					return this;
+		int subLen = subEntries.size();
+		for (int k = 0; k < subLen; k++) {
+			MagicMimeEntry me = (MagicMimeEntry) subEntries.get(k);
+			MagicMimeEntry matchingEntry = me.getMatch(content);
+			if (matchingEntry != null) {
+				return matchingEntry;
 			}
 		}
-
-		return null;
-	}
-
-	/*
-	 * private methods for reading to local buffer
-	 */
-	private ByteBuffer readBuffer(byte[] content) throws IOException {
-		int startPos = getCheckBytesFrom();
-		if (content == null || startPos > content.length) {
-			return null;
+		if (mimeType != null) {
+			return this;
 		}
-
-		ByteBuffer buf = null;
-		try {
-			switch (getType()) {
-				case MagicMimeEntry.STRING_TYPE: {
-					int len = 0;
-					// The following is not documented in the Magic(5)
-					// documentation.
-					// This is an extension to the magic rules and is provided by
-					// this utility.
-					// It allows for better matching of some text based files such
-					// as XML files
-					int index = typeStr.indexOf(">");
-					if (index != -1) {
-						len = Integer.parseInt(typeStr.substring(index + 1, typeStr
-								.length() - 1));
-						isBetween = true;
-					} else {
-						len = getContent().length();
-					}
-					buf = ByteBuffer.allocate(len);
-					buf.put(content, startPos, len);
-					break;
-				}
-
-				case MagicMimeEntry.SHORT_TYPE:
-				case MagicMimeEntry.LESHORT_TYPE:
-				case MagicMimeEntry.BESHORT_TYPE: {
-					buf = ByteBuffer.allocate(2);
-					buf.put(content, startPos, 2);
-					break;
-				}
-
-				case MagicMimeEntry.LELONG_TYPE:
-				case MagicMimeEntry.BELONG_TYPE: {
-					buf = ByteBuffer.allocate(4);
-					buf.put(content, startPos, 4);
-					break;
-				}
-
-				case MagicMimeEntry.BYTE_TYPE: {
-					buf = ByteBuffer.allocate(1);
-					buf.put(content, startPos, 1);
-					break;
-				}
-
-				default: {
-					buf = null;
-					break;
-				}
-			}
-		} catch (IndexOutOfBoundsException iobe) {
-			// Content passed in is to small for the comparison so just ignore this match
-			return null;
-		}
-		return buf;
+		return null;
 	}
 
-	private ByteBuffer readBuffer(RandomAccessFile raf) throws IOException {
-		int startPos = getCheckBytesFrom();
-		if (startPos > raf.length())
+	MagicMimeEntry getMatch(RandomAccessFile raf) throws IOException {
+		if (getCheckBytesFrom() > raf.length()) {
 			return null;
-		raf.seek(startPos);
-		ByteBuffer buf;
-		switch (getType()) {
-		case MagicMimeEntry.STRING_TYPE: {
-			int len = 0;
-			// The following is not documented in the Magic(5) documentation.
-			// This is an extension to the magic rules and is provided by this
-			// utility.
-			// It allows for better matching of some text based files such as
-			// XML files
-			int index = typeStr.indexOf(">");
-			if (index != -1) {
-				len = Integer.parseInt(typeStr.substring(index + 1, typeStr
-						.length() - 1));
-				isBetween = true;
-			} else {
-				len = getContent().length();
-			}
-			buf = ByteBuffer.allocate(len);
-			raf.read(buf.array(), 0, len);
-			break;
 		}
-
-		case MagicMimeEntry.SHORT_TYPE:
-		case MagicMimeEntry.LESHORT_TYPE:
-		case MagicMimeEntry.BESHORT_TYPE: {
-			buf = ByteBuffer.allocate(2);
-			raf.read(buf.array(), 0, 2);
-			break;
-		}
-
-		case MagicMimeEntry.LELONG_TYPE:
-		case MagicMimeEntry.BELONG_TYPE: {
-			buf = ByteBuffer.allocate(4);
-			raf.read(buf.array(), 0, 4);
-			break;
-		}
-
-		case MagicMimeEntry.BYTE_TYPE: {
-			buf = ByteBuffer.allocate(1);
-			raf.read(buf.array(), 0, 1);
-			break;
-		}
-
-		default: {
-			buf = null;
-			break;
-		}
-		}
-
-		return buf;
+		// Read everything this entry and its sub entries look at in one go
+		byte[] content = new byte[getInputStreamMarkLength()];
+		raf.seek(0);
+		int offset = 0;
+		while (offset < content.length) {
+			int bytesRead = raf.read(content, offset, content.length - offset);
+			if (bytesRead < 0)
+				break; // EOF
+			offset += bytesRead;
+		}
+		return getMatch(content);
 	}
 
-	private int getInputStreamMarkLength() {
+	int getInputStreamMarkLength() {
 		int len = _getInputStreamMarkLength();
 		for (Iterator it = subEntries.iterator(); it.hasNext();) {
 			MagicMimeEntry subEntry = (MagicMimeEntry) it.next();
@@ -535,35 +494,16 @@ class MagicMimeEntry {
 	private int _getInputStreamMarkLength() {
 		switch (getType()) {
 		case MagicMimeEntry.STRING_TYPE: {
-			int len = 0;
-			// Lets check if its a between test
-			int index = typeStr.indexOf(">");
-			if (index != -1) {
-				len = Integer.parseInt(typeStr.substring(index + 1, typeStr
-						.length() - 1));
-				isBetween = true;
-			} else {
-				if (getContent() != null) // TODO content should never be null!
-											// We should already prevent this
-											// when parsing the magic file.
-					len = getContent().length();
-			}
-			return getCheckBytesFrom() + len + 1;
+			return getCheckBytesFrom() + matchLength + 1;
 		}
 
 		case MagicMimeEntry.SHORT_TYPE:
 		case MagicMimeEntry.LESHORT_TYPE:
-		case MagicMimeEntry.BESHORT_TYPE: {
-			return getCheckBytesFrom() + 2;
-		}
-
+		case MagicMimeEntry.BESHORT_TYPE:
 		case MagicMimeEntry.LELONG_TYPE:
-		case MagicMimeEntry.BELONG_TYPE: {
-			return getCheckBytesFrom() + 4;
-		}
-
+		case MagicMimeEntry.BELONG_TYPE:
 		case MagicMimeEntry.BYTE_TYPE: {
-			return getCheckBytesFrom() + 1;
+			return getCheckBytesFrom() + matchLength;
 		}
 
 		default: {
@@ -573,87 +513,109 @@ class MagicMimeEntry {
 	}
 
 	/*
-	 * private methods used for matching different types
+	 * private methods used for matching different types.
+	 * All of these read straight from the content array at the offset of this entry
+	 * so nothing is allocated while matching.
 	 */
-	private boolean match(ByteBuffer buf) throws IOException {
-		boolean matches = true;
-		ByteOrder byteOrder = ByteOrder.BIG_ENDIAN;
+	private boolean match(byte[] content) {
+		int startPos = getCheckBytesFrom();
+		// The content passed in is too small for the comparison so this can't match
+		if (content == null || startPos < 0 || matchLength < 0
+				|| startPos > content.length - matchLength) {
+			return false;
+		}
 
 		switch (getType()) {
 		case MagicMimeEntry.STRING_TYPE: {
-			matches = matchString(buf);
-			break;
+			return matchString(content, startPos);
 		}
 
-		case MagicMimeEntry.SHORT_TYPE: {
-			matches = matchShort(buf, byteOrder);
-			break;
+		case MagicMimeEntry.SHORT_TYPE:
+		case MagicMimeEntry.BESHORT_TYPE: {
+			int found = ((content[startPos] & 0xFF) << 8)
+					| (content[startPos + 1] & 0xFF);
+			return matchNumber(found & (int) mask);
 		}
 
-		case MagicMimeEntry.LESHORT_TYPE:
-		case MagicMimeEntry.BESHORT_TYPE: {
-			if (getType() == MagicMimeEntry.LESHORT_TYPE) {
-				byteOrder = ByteOrder.LITTLE_ENDIAN;
-			}
-			matches = matchShort(buf, byteOrder);
-			break;
+		case MagicMimeEntry.LESHORT_TYPE: {
+			int found = ((content[startPos + 1] & 0xFF) << 8)
+					| (content[startPos] & 0xFF);
+			return matchNumber(found & (int) mask);
 		}
 
-		case MagicMimeEntry.LELONG_TYPE:
 		case MagicMimeEntry.BELONG_TYPE: {
-			if (getType() == MagicMimeEntry.LELONG_TYPE) {
-				byteOrder = ByteOrder.LITTLE_ENDIAN;
-			}
-			matches = matchLong(buf, byteOrder);
-			break;
+			long found = ((long) (content[startPos] & 0xFF) << 24)
+					| ((content[startPos + 1] & 0xFF) << 16)
+					| ((content[startPos + 2] & 0xFF) << 8)
+					| (content[startPos + 3] & 0xFF);
+			return matchNumber(found & mask);
+		}
+
+		case MagicMimeEntry.LELONG_TYPE: {
+			long found = ((long) (content[startPos + 3] & 0xFF) << 24)
+					| ((content[startPos + 2] & 0xFF) << 16)
+					| ((content[startPos + 1] & 0xFF) << 8)
+					| (content[startPos] & 0xFF);
+			return matchNumber(found & mask);
 		}
 
 		case MagicMimeEntry.BYTE_TYPE: {
-			matches = matchByte(buf);
-			break;
+			return matchNumber((content[startPos] & 0xFF) & (short) mask);
 		}
 
 		default: {
-			matches = false;
-			break;
+			return false;
 		}
 		}
-		return matches;
 	}
 
-	private boolean matchString(ByteBuffer bbuf) throws IOException {
+	// Strings are compared byte for byte against the ISO-8859-1 characters of the content
+	private boolean matchString(byte[] data, int offset) {
+		String content = getContent();
+		int read = content.length();
 		if (isBetween) {
-			String buffer = new String(bbuf.array());
-			if (StringUtil.contains(buffer, getContent())) {
-				return true;
+			// Is the content somewhere within the next matchLength bytes
+			int last = offset + matchLength - read;
+			for (int i = offset; i <= last; i++) {
+				int j = 0;
+				while (j < read && (data[i + j] & 0xFF) == content.charAt(j)) {
+					j++;
+				}
+				if (j == read) {
+					return true;
+				}
 			}
 			return false;
 		}
 
-		if (operation.equals(MagicMimeEntryOperation.EQUALS)) {
-			int read = getContent().length();
+		switch (operation.getOperationID()) {
+		case '=': {
 			for (int j = 0; j < read; j++) {
-				if ((bbuf.get(j) & 0xFF) != getContent().charAt(j)) {
+				if ((data[offset + j] & 0xFF) != content.charAt(j)) {
 					return false;
 				}
 			}
 			return true;
-		} else if (operation.equals(MagicMimeEntryOperation.NOT_EQUALS)) {
-			int read = getContent().length();
+		}
+		case '!': {
 			for (int j = 0; j < read; j++) {
-				if ((bbuf.get(j) & 0xFF) != getContent().charAt(j)) {
+				if ((data[offset + j] & 0xFF) != content.charAt(j)) {
 					return true;
 				}
 			}
 			return false;
-		} else if (operation.equals(MagicMimeEntryOperation.GREATER_THAN)) {
-			String buffer = new String(bbuf.array());
-			return buffer.compareTo(getContent()) > 0;
-		} else if (operation.equals(MagicMimeEntryOperation.LESS_THAN)) {
-			String buffer = new String(bbuf.array());
-			return buffer.compareTo(getContent()) < 0;
-		} else
+		}
+		case '>':
+		case '<': {
+			int cmp = 0;
+			for (int j = 0; j < read && cmp == 0; j++) {
+				cmp = (data[offset + j] & 0xFF) - content.charAt(j);
+			}
+			return operation.getOperationID() == '>' ? cmp > 0 : cmp < 0;
+		}
+		default:
 			return false;
+		}
 	}
 
 	private long getMask(String maskString) {
@@ -670,91 +632,28 @@ class MagicMimeEntry {
 		}
 	}
 
-	private boolean matchByte(ByteBuffer bbuf) throws IOException {
-		short found = (short) ((bbuf.get(0) & 0xff) & (short)getMask(typeStr));
-
-		if (operation.equals(MagicMimeEntryOperation.EQUALS)) {
-			return found == contentNumber;
-		} else if (operation.equals(MagicMimeEntryOperation.NOT_EQUALS)) {
-			return found != contentNumber;
-		} else if (operation.equals(MagicMimeEntryOperation.GREATER_THAN)) {
-			return found > contentNumber;
-		} else if (operation.equals(MagicMimeEntryOperation.LESS_THAN)) {
-			return found < contentNumber;
-		} else if (operation.equals(MagicMimeEntryOperation.AND)) {
-			boolean result = (found & contentNumber) == contentNumber;
-			return result;
-		} else if (operation.equals(MagicMimeEntryOperation.ANY)) {
-			return true;
-		} else if (operation.equals(MagicMimeEntryOperation.CLEAR)) {
-			long maskedFound = found & contentNumber;
-			boolean result = (maskedFound ^ contentNumber) == 0;
-			return result;
-		} else if (operation.equals(MagicMimeEntryOperation.NEGATED)) {
-			int negatedFound = ~found;
-			return negatedFound == contentNumber;
-		} else
-			return false;
-	}
-
-	private boolean matchShort(ByteBuffer bbuf, ByteOrder bo)
-			throws IOException {
-		bbuf.order(bo);
-
-		int found = (int)((bbuf.getShort() & 0xffff) & (int)getMask(typeStr));
-
-		if (operation.equals(MagicMimeEntryOperation.EQUALS)) {
-			return found == contentNumber;
-		} else if (operation.equals(MagicMimeEntryOperation.NOT_EQUALS)) {
-			return found != contentNumber;
-		} else if (operation.equals(MagicMimeEntryOperation.GREATER_THAN)) {
-			return found > contentNumber;
-		} else if (operation.equals(MagicMimeEntryOperation.LESS_THAN)) {
-			return found < contentNumber;
-		} else if (operation.equals(MagicMimeEntryOperation.AND)) {
-			boolean result = (found & contentNumber) == contentNumber;
-			return result;
-		} else if (operation.equals(MagicMimeEntryOperation.ANY)) {
-			return true;
-		} else if (operation.equals(MagicMimeEntryOperation.CLEAR)) {
-			long maskedFound = found & contentNumber;
-			boolean result = (maskedFound ^ contentNumber) == 0;
-			return result;
-		} else if (operation.equals(MagicMimeEntryOperation.NEGATED)) {
-			int negatedFound = ~found;
-			return negatedFound == contentNumber;
-		} else
-			return false;
-	}
-
-	private boolean matchLong(ByteBuffer bbuf, ByteOrder bo)
-			throws IOException {
-		bbuf.order(bo);
-
-		long found = (long)((bbuf.getInt() & 0xffffffffL) & getMask(typeStr));
-
-		if (operation.equals(MagicMimeEntryOperation.EQUALS)) {
+	// The masked value read from the content is never negative
+	private boolean matchNumber(long found) {
+		switch (operation.getOperationID()) {
+		case '=':
 			return found == contentNumber;
-		} else if (operation.equals(MagicMimeEntryOperation.NOT_EQUALS)) {
+		case '!':
 			return found != contentNumber;
-		} else if (operation.equals(MagicMimeEntryOperation.GREATER_THAN)) {
+		case '>':
 			return found > contentNumber;
-		} else if (operation.equals(MagicMimeEntryOperation.LESS_THAN)) {
+		case '<':
 			return found < contentNumber;
-		} else if (operation.equals(MagicMimeEntryOperation.AND)) {
-			boolean result = (found & contentNumber) == contentNumber;
-			return result;
-		} else if (operation.equals(MagicMimeEntryOperation.ANY)) {
+		case '&':
+			return (found & contentNumber) == contentNumber;
+		case 'x':
 			return true;
-		} else if (operation.equals(MagicMimeEntryOperation.CLEAR)) {
-			long maskedFound = found & contentNumber;
-			boolean result = (maskedFound ^ contentNumber) == 0;
-			return result;
-		} else if (operation.equals(MagicMimeEntryOperation.NEGATED)) {
-			long negatedFound = ~found;
-			return negatedFound == contentNumber;
-		} else
+		case '^':
+			return ((found & contentNumber) ^ contentNumber) == 0;
+		case '~':
+			return ~found == contentNumber;
+		default:
 			return false;
+		}
 	}
 
 	/*
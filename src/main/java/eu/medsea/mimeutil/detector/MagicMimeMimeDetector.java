@@ -30,16 +30,19 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import eu.medsea.mimeutil.MimeException;
+import eu.medsea.mimeutil.MimeType;
 import eu.medsea.mimeutil.MimeUtil;
 
 /**
@@ -100,7 +103,7 @@ import eu.medsea.mimeutil.MimeUtil;
  * <pre>
  * #PNG Image Format
  * 0		string		\211PNG\r\n\032\n		image/png
- *
+ *
  * #SVG Image Format
  * #	We know its an XML file so it should start with an XML declaration.
  * 0	string	\&lt;?xml\ version=	text/xml
@@ -131,6 +134,13 @@ import eu.medsea.mimeutil.MimeUtil;
  * for us to use as well.
  * </p>
  * <p>
+ * The rules are parsed only once for each distinct set of the locations listed
+ * above and are then shared by every MagicMimeMimeDetector created with the same
+ * locations, no matter how many MimeUtil2 instances register one. The shared
+ * rules are released when the last MagicMimeMimeDetector using them is
+ * unregistered.
+ * </p>
+ * <p>
  * This class is auto loaded by MimeUtil as it has an entry in the file called
  * MimeDetectors. MimeUtil reads this file at startup and calls Class.forName()
  * on each entry found. This mean the MimeDetector must have a no arg
@@ -151,10 +161,38 @@ public class MagicMimeMimeDetector extends MimeDetector {
 	private static List magicMimeFileLocations = Arrays
 			.asList(defaultLocations);
 
-	private static ArrayList mMagicMimeEntries = new ArrayList();
+	// Parsed rule sets shared by all instances, keyed by the configuration they were loaded from
+	private static Map ruleSets = new HashMap();
+
+	private MagicMimeRuleSet ruleSet;
+	// Set once this detector has given up its reference so that a second delete() does nothing.
+	// The rules are kept for detections that may still be running. Guarded by ruleSets.
+	private boolean released;
 
 	public MagicMimeMimeDetector() {
-		MagicMimeMimeDetector.initMagicRules();
+		ruleSet = MagicMimeMimeDetector.acquireRuleSet();
+	}
+
+	/**
+	 * Release this detectors reference to the shared magic rules. The rules are
+	 * dropped once no MagicMimeMimeDetector is using them anymore. Calling this
+	 * more than once has no further effect.
+	 */
+	public void delete() {
+		synchronized (ruleSets) {
+			if (released || ruleSet == null) {
+				return;
+			}
+			released = true;
+			if (--ruleSet.references == 0) {
+				ruleSets.remove(ruleSet.getConfiguration());
+			}
+		}
+	}
+
+	// Package scoped for the unit tests
+	MagicMimeRuleSet getRuleSet() {
+		return ruleSet;
 	}
 
 	public String getDescription() {
@@ -171,13 +209,18 @@ public class MagicMimeMimeDetector extends MimeDetector {
 	public Collection getMimeTypesByteArray(final byte[] data)
 			throws UnsupportedOperationException {
 		Collection mimeTypes = new LinkedHashSet();
-		int len = mMagicMimeEntries.size();
+		MagicMimeRuleSet rules = ruleSet;
+		// Only the rules that can match the bytes at their offsets are evaluated.
+		// These are returned in rule order so the result is the same as testing all of them.
+		int[] candidates = rules.getIndex().getCandidates(data, data == null ? 0 : data.length);
 		try {
-			for (int i = 0; i < len; i++) {
-				MagicMimeEntry me = (MagicMimeEntry) mMagicMimeEntries.get(i);
+			for (int i = 0; i < candidates.length; i++) {
+				MagicMimeEntry me = rules.getEntry(candidates[i]);
 				MagicMimeEntry matchingMagicMimeEntry = me.getMatch(data);
 				if (matchingMagicMimeEntry != null) {
-					mimeTypes.add(matchingMagicMimeEntry.getMimeType());
+					// The rules are shared so never hand out the rules own MimeType as
+					// the specificity of the returned MimeType(s) gets changed by the caller
+					mimeTypes.add(new MimeType(matchingMagicMimeEntry.getMimeType()));
 				}
 			}
 		} catch (Exception e) {
@@ -202,20 +245,59 @@ public class MagicMimeMimeDetector extends MimeDetector {
 	 */
 	public Collection getMimeTypesInputStream(final InputStream in)
 			throws UnsupportedOperationException {
-		Collection mimeTypes = new LinkedHashSet();
-		int len = mMagicMimeEntries.size();
+		// Read everything any of the rules could look at in one go and then
+		// match all of the rules against this one zero padded buffer
+		int len = ruleSet.getMaxHeaderLength();
+		byte[] data = new byte[len];
+		in.mark(len);
 		try {
-			for (int i = 0; i < len; i++) {
-				MagicMimeEntry me = (MagicMimeEntry) mMagicMimeEntries.get(i);
-				MagicMimeEntry matchingMagicMimeEntry = me.getMatch(in);
-				if (matchingMagicMimeEntry != null) {
-					mimeTypes.add(matchingMagicMimeEntry.getMimeType());
-				}
+			// Since an InputStream might return only some data (not all
+			// requested), we have to read in a loop until
+			// either EOF is reached or the desired number of bytes have been
+			// read.
+			int offset = 0;
+			int restBytesToRead = len;
+			while (restBytesToRead > 0) {
+				int bytesRead = in.read(data, offset, restBytesToRead);
+				if (bytesRead < 0)
+					break; // EOF
+
+				offset += bytesRead;
+				restBytesToRead -= bytesRead;
 			}
 		} catch (Exception e) {
 			log.error(e.getMessage(), e);
+			return new LinkedHashSet();
+		} finally {
+			try {
+				// Reset the input stream to where it was marked.
+				in.reset();
+			} catch (Exception e) {
+				log.error(e.getMessage(), e);
+			}
 		}
-		return mimeTypes;
+		return getMimeTypesByteArray(data);
+	}
+
+	/**
+	 * The number of bytes needed by the rule that looks furthest into the content
+	 * @see MimeDetector.getHeaderLength()
+	 */
+	public int getHeaderLength() {
+		return ruleSet.getMaxHeaderLength();
+	}
+
+	/**
+	 * Match the rules against the header shared by all MimeDetector(s). As the header is zero padded to
+	 * at least the length needed by the rule that looks furthest into the content, this gives the same
+	 * result as reading the file through the InputStream method.
+	 */
+	protected Collection getMimeTypesContext(final MimeDetectionContext context) throws UnsupportedOperationException {
+		byte [] header = context.getHeader();
+		if(header == null || header.length < ruleSet.getMaxHeaderLength()) {
+			return getMimeTypesFile(context.getFile());
+		}
+		return getMimeTypesByteArray(header);
 	}
 
 	/**
@@ -267,7 +349,38 @@ public class MagicMimeMimeDetector extends MimeDetector {
 	 * we are unable to locate any of the files in steps 2 - 5 above Thanks go
 	 * to Simon Pepping for his bug report
 	 */
-	private static void initMagicRules() {
+	private static MagicMimeRuleSet acquireRuleSet() {
+		String configuration = getConfiguration();
+		synchronized (ruleSets) {
+			MagicMimeRuleSet rules = (MagicMimeRuleSet) ruleSets.get(configuration);
+			if (rules == null) {
+				List entries = new ArrayList();
+				initMagicRules(entries);
+				rules = new MagicMimeRuleSet(configuration, entries);
+				ruleSets.put(configuration, rules);
+			} else if (log.isDebugEnabled()) {
+				log.debug("Sharing already loaded magic rules for configuration ["
+						+ configuration + "]");
+			}
+			rules.references++;
+			return rules;
+		}
+	}
+
+	/*
+	 * Everything that decides which rule files initMagicRules(...) will find.
+	 * Detectors created while these are the same share one set of rules.
+	 */
+	private static String getConfiguration() {
+		StringBuffer buf = new StringBuffer();
+		buf.append("magic-mime=").append(System.getProperty("magic-mime"));
+		buf.append(";user.home=").append(System.getProperty("user.home"));
+		buf.append(";MAGIC=").append(System.getProperty("MAGIC"));
+		buf.append(";locations=").append(magicMimeFileLocations);
+		return buf.toString();
+	}
+
+	private static void initMagicRules(final List entries) {
 		InputStream in = null;
 
 		// Try to locate a magic.mime file locate by system property magic-mime
@@ -276,7 +389,7 @@ public class MagicMimeMimeDetector extends MimeDetector {
 			if (fname != null && fname.length() != 0) {
 				in = new FileInputStream(fname);
 				if (in != null) {
-					parse("-Dmagic-mime=" + fname, new InputStreamReader(in));
+					parse(entries, "-Dmagic-mime=" + fname, new InputStreamReader(in));
 				}
 			}
 		} catch (Exception e) {
@@ -297,7 +410,7 @@ public class MagicMimeMimeDetector extends MimeDetector {
 				in = url.openStream();
 				if(in != null) {
 					try {
-						parse("classpath:[" + url + "]", new InputStreamReader(in));
+						parse(entries, "classpath:[" + url + "]", new InputStreamReader(in));
 					} catch(Exception ex) {
 						log.error("Failed to parse magic.mime rule file [" + url + "] on the classpath. File will be ignored.",
 							ex);
@@ -320,7 +433,7 @@ public class MagicMimeMimeDetector extends MimeDetector {
 				in = new FileInputStream(f);
 				if (in != null) {
 					try {
-						parse(f.getAbsolutePath(), new InputStreamReader(in));
+						parse(entries, f.getAbsolutePath(), new InputStreamReader(in));
 					} catch(Exception ex) {
 						log.error("Failed to parse .magic.mime file from the users home directory. File will be ignored.", ex);
 					}
@@ -352,7 +465,7 @@ public class MagicMimeMimeDetector extends MimeDetector {
 					in = new FileInputStream(f);
 					if (in != null) {
 						try {
-							parse(f.getAbsolutePath(),
+							parse(entries, f.getAbsolutePath(),
 									new InputStreamReader(in));
 						}catch(Exception ex) {
 							log.error("Failed to parse magic.mime file from directory located by environment variable MAGIC. File will be ignored.", ex);
@@ -372,13 +485,13 @@ public class MagicMimeMimeDetector extends MimeDetector {
 		// default magic.mime that we ship,
 		// if no entries were read from the OS.
 
-		int mMagicMimeEntriesSizeBeforeReadingOS = mMagicMimeEntries.size();
+		int mMagicMimeEntriesSizeBeforeReadingOS = entries.size();
 		Iterator it = magicMimeFileLocations.iterator();
 		while (it.hasNext()) {
-			parseMagicMimeFileLocation((String) it.next());
+			parseMagicMimeFileLocation(entries, (String) it.next());
 		}
 
-		if (mMagicMimeEntriesSizeBeforeReadingOS == mMagicMimeEntries.size()) {
+		if (mMagicMimeEntriesSizeBeforeReadingOS == entries.size()) {
 			// Use the magic.mime that we ship
 			try {
 				String resource = "eu/medsea/mimeutil/magic.mime";
@@ -386,7 +499,7 @@ public class MagicMimeMimeDetector extends MimeDetector {
 						resource);
 				if(in != null) {
 					try {
-						parse("resource:" + resource, new InputStreamReader(in));
+						parse(entries, "resource:" + resource, new InputStreamReader(in));
 					}catch(Exception ex) {
 						log.error("Failed to parse internal magic.mime file.", ex);
 					}
@@ -399,7 +512,22 @@ public class MagicMimeMimeDetector extends MimeDetector {
 		}
 	}
 
-	private static void parseMagicMimeFileLocation(final String location) {
+	/*
+	 * Build the OffsetByteIndex for a list of top level MagicMimeEntry(s)
+	 */
+	static OffsetByteIndex createIndex(final List entries) {
+		int size = entries.size();
+		int[] offsets = new int[size];
+		int[] bytes = new int[size];
+		for (int i = 0; i < size; i++) {
+			MagicMimeEntry entry = (MagicMimeEntry) entries.get(i);
+			offsets[i] = entry.getCheckBytesFrom();
+			bytes[i] = entry.getIndexByte();
+		}
+		return new OffsetByteIndex(offsets, bytes);
+	}
+
+	private static void parseMagicMimeFileLocation(final List entries, final String location) {
 		InputStream is = null;
 
 		List magicMimeFiles = getMagicFilesFromMagicMimeFileLocation(location);
@@ -410,7 +538,7 @@ public class MagicMimeMimeDetector extends MimeDetector {
 				if (f.exists()) {
 					is = new FileInputStream(f);
 					try {
-						parse(f.getAbsolutePath(), new InputStreamReader(is));
+						parse(entries, f.getAbsolutePath(), new InputStreamReader(is));
 					}catch(Exception e) {
 						log.error("Failed to parse " + f.getName() + ". File will be ignored.");
 					}
@@ -467,7 +595,7 @@ public class MagicMimeMimeDetector extends MimeDetector {
 	}
 
 	// Parse the magic.mime file
-	private static void parse(final String magicFile, final Reader r)
+	private static void parse(final List entries, final String magicFile, final Reader r)
 			throws IOException {
 		long start = System.currentTimeMillis();
 
@@ -499,7 +627,7 @@ public class MagicMimeMimeDetector extends MimeDetector {
 				if (line != null)
 					++lineNumber;
 				if (line == null) {
-					addEntry(magicFile, lineNumber, sequence);
+					addEntry(entries, magicFile, lineNumber, sequence);
 					sequence.clear();
 					break;
 				}
@@ -508,7 +636,7 @@ public class MagicMimeMimeDetector extends MimeDetector {
 					continue;
 				}
 				if (line.charAt(0) != '>') {
-					addEntry(magicFile, lineNumber, sequence);
+					addEntry(entries, magicFile, lineNumber, sequence);
 					sequence.clear();
 					break;
 				}
@@ -517,7 +645,7 @@ public class MagicMimeMimeDetector extends MimeDetector {
 
 		}
 		if (!sequence.isEmpty()) {
-			addEntry(magicFile, lineNumber, sequence);
+			addEntry(entries, magicFile, lineNumber, sequence);
 		}
 
 		if (log.isDebugEnabled())
@@ -525,11 +653,11 @@ public class MagicMimeMimeDetector extends MimeDetector {
 					+ (System.currentTimeMillis() - start) + " msec.");
 	}
 
-	private static void addEntry(final String magicFile, final long lineNumber,
+	private static void addEntry(final List entries, final String magicFile, final long lineNumber,
 			final ArrayList aStringArray) {
 		try {
 			MagicMimeEntry magicEntry = new MagicMimeEntry(aStringArray);
-			mMagicMimeEntries.add(magicEntry);
+			entries.add(magicEntry);
 			// Add this to the list of known mime types as well
 			if (magicEntry.getMimeType() != null) {
 				MimeUtil.addKnownMimeType(magicEntry.getMimeType());
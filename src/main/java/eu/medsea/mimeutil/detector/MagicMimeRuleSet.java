@@ -0,0 +1,77 @@
+/*
+ * Copyright 2007-2009 Medsea Business Solutions S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.medsea.mimeutil.detector;
+
+import java.util.List;
+
+/**
+ * <p>
+ * An immutable snapshot of the top level magic.mime rules loaded for one configuration
+ * of the MagicMimeMimeDetector, together with the OffsetByteIndex over them and the largest
+ * number of bytes any of the rules needs to look at.
+ * </p>
+ * <p>
+ * Rule sets are shared by all MagicMimeMimeDetector(s) created with the same configuration.
+ * The MagicMimeMimeDetector keeps a reference count for each one so that the rules are
+ * released when the last detector using them is deleted.
+ * </p>
+ */
+final class MagicMimeRuleSet {
+
+	private final String configuration;
+	private final MagicMimeEntry[] entries;
+	private final OffsetByteIndex index;
+	private final int maxHeaderLength;
+
+	// Number of MagicMimeMimeDetector(s) using this rule set.
+	// Only accessed while holding the lock of the MagicMimeMimeDetector rule set cache
+	int references;
+
+	MagicMimeRuleSet(final String configuration, final List entries) {
+		this.configuration = configuration;
+		this.entries = (MagicMimeEntry[]) entries.toArray(new MagicMimeEntry[entries.size()]);
+		this.index = MagicMimeMimeDetector.createIndex(entries);
+
+		int len = 0;
+		for (int i = 0; i < this.entries.length; i++) {
+			int markLength = this.entries[i].getInputStreamMarkLength();
+			if (markLength > len) {
+				len = markLength;
+			}
+		}
+		this.maxHeaderLength = len;
+	}
+
+	String getConfiguration() {
+		return configuration;
+	}
+
+	int size() {
+		return entries.length;
+	}
+
+	MagicMimeEntry getEntry(final int i) {
+		return entries[i];
+	}
+
+	OffsetByteIndex getIndex() {
+		return index;
+	}
+
+	int getMaxHeaderLength() {
+		return maxHeaderLength;
+	}
+}
@@ -0,0 +1,624 @@
+/*
+ * Copyright 2007-2009 Medsea Business Solutions S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.medsea.mimeutil.detector;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Merges the mime.cache files of several directories of the shared mime database into a single
+ * mime.cache held in memory, so that the OpendesktopMimeDetector can look up a file name or content
+ * once for all of them.
+ * </p>
+ * <p>
+ * The caches are given in order of precedence, that is the order of the XDG base directories they
+ * were found in. In the same way as the xdgmime reference implementation consults every cache, all
+ * globs, magic rules and parents of all caches are kept. Where the caches say different things about
+ * the same thing the cache with the highest precedence wins. That is the weight of a glob that is in
+ * more than one cache, the mime types of a literal file name, the mime type an alias stands for, the
+ * icons of a mime type and the mime type of an XML namespace.
+ * </p>
+ * <p>
+ * A cache may still use a name for a mime type that another cache knows as an alias, typically an
+ * older cache using a name that has since been deprecated. All mime types are therefore resolved
+ * through the merged aliases so that each mime type is only known under one name.
+ * </p>
+ */
+final class MimeCacheMerger {
+
+	private static Logger log = LoggerFactory.getLogger(MimeCacheMerger.class);
+
+	private static final int HEADER_LENGTH = 40;
+
+	private short majorVersion = -1;
+	private short minorVersion;
+
+	// Sorted maps for the lists that are binary searched
+	private final Map aliases = new TreeMap();
+	private final Map parents = new TreeMap();
+	private final Map namespaces = new TreeMap();
+	private final Map icons = new TreeMap();
+	private final Map genericIcons = new TreeMap();
+
+	private final List literals = new ArrayList();
+	private final Set literalPatterns = new HashSet();
+	private final List suffixes = new ArrayList();
+	private final List globs = new ArrayList();
+	private final Set globKeys = new HashSet();
+
+	private final List magic = new ArrayList();
+	private int maxExtents;
+
+	private MimeCacheMerger() {
+	}
+
+	/**
+	 * Merge mime.cache files
+	 * @param caches the content of the mime.cache files, highest precedence first
+	 * @return the content of the merged mime.cache
+	 */
+	static ByteBuffer merge(final ByteBuffer[] caches) {
+		MimeCacheMerger merger = new MimeCacheMerger();
+		for (int i = 0; i < caches.length; i++) {
+			merger.add(caches[i]);
+		}
+		merger.unaliasMimeTypes();
+		return ByteBuffer.wrap(merger.write());
+	}
+
+	private void add(final ByteBuffer cache) {
+		if (cache.getShort(0) != 1) {
+			log.error("Ignoring mime.cache with unsupported version [" + cache.getShort(0) + "." + cache.getShort(2) + "]");
+			return;
+		}
+		if (majorVersion < 0) {
+			majorVersion = cache.getShort(0);
+			minorVersion = cache.getShort(2);
+		}
+
+		int listOffset = cache.getInt(4);
+		int numEntries = cache.getInt(listOffset);
+		for (int i = 0; i < numEntries; i++) {
+			putIfAbsent(aliases, getString(cache, cache.getInt(listOffset + 4 + (8 * i))),
+					getString(cache, cache.getInt(listOffset + 8 + (8 * i))));
+		}
+
+		listOffset = cache.getInt(8);
+		numEntries = cache.getInt(listOffset);
+		for (int i = 0; i < numEntries; i++) {
+			String mimeType = getString(cache, cache.getInt(listOffset + 4 + (8 * i)));
+			List _parents = (List) parents.get(mimeType);
+			if (_parents == null) {
+				_parents = new ArrayList();
+				parents.put(mimeType, _parents);
+			}
+			int parentsOffset = cache.getInt(listOffset + 8 + (8 * i));
+			int numParents = cache.getInt(parentsOffset);
+			for (int j = 0; j < numParents; j++) {
+				String parent = getString(cache, cache.getInt(parentsOffset + 4 + (4 * j)));
+				if (!_parents.contains(parent)) {
+					_parents.add(parent);
+				}
+			}
+		}
+
+		addLiterals(cache, cache.getInt(12));
+
+		listOffset = cache.getInt(16);
+		addSuffixes(cache, cache.getInt(listOffset), cache.getInt(listOffset + 4), new StringBuffer());
+
+		addGlobList(cache, cache.getInt(20), globs);
+
+		listOffset = cache.getInt(24);
+		numEntries = cache.getInt(listOffset);
+		maxExtents = Math.max(maxExtents, cache.getInt(listOffset + 4));
+		int offset = cache.getInt(listOffset + 8);
+		for (int i = 0; i < numEntries; i++) {
+			MagicEntry entry = new MagicEntry();
+			entry.priority = cache.getInt(offset + (16 * i));
+			entry.mimeType = getString(cache, cache.getInt(offset + (16 * i) + 4));
+			entry.matchlets = getMatchlets(cache, cache.getInt(offset + (16 * i) + 8),
+					cache.getInt(offset + (16 * i) + 12));
+			magic.add(entry);
+		}
+
+		listOffset = cache.getInt(28);
+		numEntries = cache.getInt(listOffset);
+		for (int i = 0; i < numEntries; i++) {
+			String namespaceURI = getString(cache, cache.getInt(listOffset + 4 + (12 * i)));
+			String localName = getString(cache, cache.getInt(listOffset + 8 + (12 * i)));
+			// The separator sorts before any character so the keys sort by URI and then local name
+			putIfAbsent(namespaces, namespaceURI + '\0' + localName, new String[] {namespaceURI, localName,
+					getString(cache, cache.getInt(listOffset + 12 + (12 * i)))});
+		}
+
+		addIcons(cache, cache.getInt(32), icons);
+		addIcons(cache, cache.getInt(36), genericIcons);
+	}
+
+	private void addGlobList(final ByteBuffer cache, final int listOffset, final List list) {
+		int numEntries = cache.getInt(listOffset);
+		for (int i = 0; i < numEntries; i++) {
+			addGlob(list, getString(cache, cache.getInt(listOffset + 4 + (12 * i))),
+					getString(cache, cache.getInt(listOffset + 8 + (12 * i))),
+					cache.getInt(listOffset + 12 + (12 * i)));
+		}
+	}
+
+	// A literal is binary searched, so only one cache can provide the mime types of a file name.
+	// As with xdgmime the first cache with the literal wins.
+	private void addLiterals(final ByteBuffer cache, final int listOffset) {
+		List _literals = new ArrayList();
+		addGlobList(cache, listOffset, _literals);
+		Set patterns = new HashSet();
+		for (Iterator it = _literals.iterator(); it.hasNext();) {
+			Glob glob = (Glob) it.next();
+			if (!literalPatterns.contains(glob.pattern)) {
+				literals.add(glob);
+				patterns.add(glob.pattern);
+			}
+		}
+		literalPatterns.addAll(patterns);
+	}
+
+	// Collect the leaves of the reverse suffix tree. The pattern of a leaf is the
+	// characters on the path to it, that is the suffix reversed.
+	private void addSuffixes(final ByteBuffer cache, final int numEntries, final int offset, final StringBuffer path) {
+		for (int i = 0; i < numEntries; i++) {
+			int character = cache.getInt(offset + (12 * i));
+			if (character == 0) {
+				addGlob(suffixes, path.toString(), getString(cache, cache.getInt(offset + (12 * i) + 4)),
+						cache.getInt(offset + (12 * i) + 8));
+			} else {
+				path.append((char) character);
+				addSuffixes(cache, cache.getInt(offset + (12 * i) + 4), cache.getInt(offset + (12 * i) + 8), path);
+				path.setLength(path.length() - 1);
+			}
+		}
+	}
+
+	private void addGlob(final List list, final String pattern, final String mimeType, final int weight) {
+		list.add(new Glob(pattern, mimeType, weight));
+	}
+
+	private String unalias(final String mimeType) {
+		String _mimeType = (String) aliases.get(mimeType);
+		return _mimeType == null ? mimeType : _mimeType;
+	}
+
+	// Resolve the aliases in a list of globs. The same pattern for the same
+	// mime type keeps the weight of the first cache.
+	private List unaliasGlobs(final List globs, final char kind) {
+		List _globs = new ArrayList(globs.size());
+		for (Iterator it = globs.iterator(); it.hasNext();) {
+			Glob glob = (Glob) it.next();
+			String mimeType = unalias(glob.mimeType);
+			if (globKeys.add(kind + glob.pattern + '\0' + mimeType)) {
+				_globs.add(new Glob(glob.pattern, mimeType, glob.weight));
+			}
+		}
+		return _globs;
+	}
+
+	// Resolve the aliases everywhere a mime type is used other than in the alias list
+	private void unaliasMimeTypes() {
+		List _literals = unaliasGlobs(literals, 'L');
+		literals.clear();
+		literals.addAll(_literals);
+		List _suffixes = unaliasGlobs(suffixes, 'S');
+		suffixes.clear();
+		suffixes.addAll(_suffixes);
+		List _globs = unaliasGlobs(globs, 'G');
+		globs.clear();
+		globs.addAll(_globs);
+
+		for (Iterator it = magic.iterator(); it.hasNext();) {
+			MagicEntry entry = (MagicEntry) it.next();
+			entry.mimeType = unalias(entry.mimeType);
+		}
+
+		Map _parents = new TreeMap();
+		for (Iterator it = parents.entrySet().iterator(); it.hasNext();) {
+			Map.Entry entry = (Map.Entry) it.next();
+			String mimeType = unalias((String) entry.getKey());
+			List list = (List) _parents.get(mimeType);
+			if (list == null) {
+				list = new ArrayList();
+				_parents.put(mimeType, list);
+			}
+			for (Iterator _it = ((List) entry.getValue()).iterator(); _it.hasNext();) {
+				String parent = unalias((String) _it.next());
+				if (!list.contains(parent)) {
+					list.add(parent);
+				}
+			}
+		}
+		parents.clear();
+		parents.putAll(_parents);
+	}
+
+	private Matchlet[] getMatchlets(final ByteBuffer cache, final int numMatchlets, final int offset) {
+		Matchlet[] matchlets = new Matchlet[numMatchlets];
+		for (int i = 0; i < numMatchlets; i++) {
+			int matchletOffset = offset + (32 * i);
+			Matchlet matchlet = new Matchlet();
+			matchlet.rangeStart = cache.getInt(matchletOffset);
+			matchlet.rangeLength = cache.getInt(matchletOffset + 4);
+			matchlet.wordSize = cache.getInt(matchletOffset + 8);
+			int valueLength = cache.getInt(matchletOffset + 12);
+			matchlet.value = getBytes(cache, cache.getInt(matchletOffset + 16), valueLength);
+			int maskOffset = cache.getInt(matchletOffset + 20);
+			if (maskOffset != 0) {
+				matchlet.mask = getBytes(cache, maskOffset, valueLength);
+			}
+			matchlet.children = getMatchlets(cache, cache.getInt(matchletOffset + 24),
+					cache.getInt(matchletOffset + 28));
+			matchlets[i] = matchlet;
+		}
+		return matchlets;
+	}
+
+	private void addIcons(final ByteBuffer cache, final int listOffset, final Map icons) {
+		int numEntries = cache.getInt(listOffset);
+		for (int i = 0; i < numEntries; i++) {
+			putIfAbsent(icons, getString(cache, cache.getInt(listOffset + 4 + (8 * i))),
+					getString(cache, cache.getInt(listOffset + 8 + (8 * i))));
+		}
+	}
+
+	private static void putIfAbsent(final Map map, final Object key, final Object value) {
+		if (!map.containsKey(key)) {
+			map.put(key, value);
+		}
+	}
+
+	// Strings are decoded one byte per char in the same way as the OpendesktopMimeDetector does
+	private static String getString(final ByteBuffer cache, int offset) {
+		StringBuffer buf = new StringBuffer();
+		char c;
+		while ((c = (char) cache.get(offset++)) != 0) {
+			buf.append(c);
+		}
+		return buf.toString();
+	}
+
+	private static byte[] getBytes(final ByteBuffer cache, final int offset, final int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = cache.get(offset + i);
+		}
+		return bytes;
+	}
+
+	private byte[] write() {
+		Output out = new Output();
+		out.putShort(majorVersion < 0 ? 1 : majorVersion);
+		out.putShort(minorVersion);
+		for (int i = 4; i < HEADER_LENGTH; i += 4) {
+			out.putInt(0);
+		}
+
+		out.putIntAt(4, out.size());
+		out.putInt(aliases.size());
+		for (Iterator it = aliases.entrySet().iterator(); it.hasNext();) {
+			Map.Entry entry = (Map.Entry) it.next();
+			out.putString((String) entry.getKey());
+			out.putString((String) entry.getValue());
+		}
+
+		out.putIntAt(8, out.size());
+		out.putInt(parents.size());
+		int[] parentOffsets = new int[parents.size()];
+		int i = 0;
+		for (Iterator it = parents.keySet().iterator(); it.hasNext();) {
+			out.putString((String) it.next());
+			parentOffsets[i++] = out.size();
+			out.putInt(0);
+		}
+		i = 0;
+		for (Iterator it = parents.values().iterator(); it.hasNext();) {
+			List _parents = (List) it.next();
+			out.putIntAt(parentOffsets[i++], out.size());
+			out.putInt(_parents.size());
+			for (Iterator _it = _parents.iterator(); _it.hasNext();) {
+				out.putString((String) _it.next());
+			}
+		}
+
+		// Literals are binary searched
+		Collections.sort(literals, new Comparator() {
+			public int compare(Object o1, Object o2) {
+				return ((Glob) o1).pattern.compareTo(((Glob) o2).pattern);
+			}
+		});
+		out.putIntAt(12, out.size());
+		writeGlobList(out, literals);
+
+		out.putIntAt(16, out.size());
+		writeSuffixTree(out);
+
+		out.putIntAt(20, out.size());
+		writeGlobList(out, globs);
+
+		out.putIntAt(24, out.size());
+		writeMagic(out);
+
+		out.putIntAt(28, out.size());
+		out.putInt(namespaces.size());
+		for (Iterator it = namespaces.values().iterator(); it.hasNext();) {
+			String[] namespace = (String[]) it.next();
+			out.putString(namespace[0]);
+			out.putString(namespace[1]);
+			out.putString(namespace[2]);
+		}
+
+		out.putIntAt(32, out.size());
+		writeIcons(out, icons);
+		out.putIntAt(36, out.size());
+		writeIcons(out, genericIcons);
+
+		return out.toByteArray();
+	}
+
+	private void writeGlobList(final Output out, final List globs) {
+		out.putInt(globs.size());
+		for (Iterator it = globs.iterator(); it.hasNext();) {
+			Glob glob = (Glob) it.next();
+			out.putString(glob.pattern);
+			out.putString(glob.mimeType);
+			out.putInt(glob.weight);
+		}
+	}
+
+	// Each level of the tree is written as a block of nodes sorted by character.
+	// The leaves have the character 0 so they come first.
+	private void writeSuffixTree(final Output out) {
+		SuffixNode root = new SuffixNode();
+		for (Iterator it = suffixes.iterator(); it.hasNext();) {
+			Glob glob = (Glob) it.next();
+			SuffixNode node = root;
+			for (int i = 0; i < glob.pattern.length(); i++) {
+				Integer character = new Integer(glob.pattern.charAt(i));
+				SuffixNode child = (SuffixNode) node.children.get(character);
+				if (child == null) {
+					child = new SuffixNode();
+					node.children.put(character, child);
+				}
+				node = child;
+			}
+			node.leaves.add(glob);
+		}
+
+		out.putInt(root.size());
+		LinkedList blocks = new LinkedList();
+		blocks.add(new Block(root, out.size()));
+		out.putInt(0);
+		while (!blocks.isEmpty()) {
+			Block block = (Block) blocks.removeFirst();
+			SuffixNode node = (SuffixNode) block.content;
+			out.putIntAt(block.patchOffset, out.size());
+			for (Iterator it = node.leaves.iterator(); it.hasNext();) {
+				Glob glob = (Glob) it.next();
+				out.putInt(0);
+				out.putString(glob.mimeType);
+				out.putInt(glob.weight);
+			}
+			for (Iterator it = node.children.entrySet().iterator(); it.hasNext();) {
+				Map.Entry entry = (Map.Entry) it.next();
+				SuffixNode child = (SuffixNode) entry.getValue();
+				out.putInt(((Integer) entry.getKey()).intValue());
+				out.putInt(child.size());
+				blocks.add(new Block(child, out.size()));
+				out.putInt(0);
+			}
+		}
+	}
+
+	// The entries are sorted by descending priority. The sort is stable so entries
+	// of the same priority stay in the order of the caches. The matchlets of an
+	// entry and the children of a matchlet are written as blocks.
+	private void writeMagic(final Output out) {
+		Collections.sort(magic, new Comparator() {
+			public int compare(Object o1, Object o2) {
+				return ((MagicEntry) o2).priority - ((MagicEntry) o1).priority;
+			}
+		});
+
+		out.putInt(magic.size());
+		out.putInt(maxExtents);
+		out.putInt(out.size() + 4);
+		LinkedList blocks = new LinkedList();
+		for (Iterator it = magic.iterator(); it.hasNext();) {
+			MagicEntry entry = (MagicEntry) it.next();
+			out.putInt(entry.priority);
+			out.putString(entry.mimeType);
+			out.putInt(entry.matchlets.length);
+			blocks.add(new Block(entry.matchlets, out.size()));
+			out.putInt(0);
+		}
+		while (!blocks.isEmpty()) {
+			Block block = (Block) blocks.removeFirst();
+			Matchlet[] matchlets = (Matchlet[]) block.content;
+			out.putIntAt(block.patchOffset, out.size());
+			for (int i = 0; i < matchlets.length; i++) {
+				Matchlet matchlet = matchlets[i];
+				out.putInt(matchlet.rangeStart);
+				out.putInt(matchlet.rangeLength);
+				out.putInt(matchlet.wordSize);
+				out.putInt(matchlet.value.length);
+				out.putBytes(matchlet.value);
+				if (matchlet.mask == null) {
+					out.putInt(0);
+				} else {
+					out.putBytes(matchlet.mask);
+				}
+				out.putInt(matchlet.children.length);
+				blocks.add(new Block(matchlet.children, out.size()));
+				out.putInt(0);
+			}
+		}
+	}
+
+	private void writeIcons(final Output out, final Map icons) {
+		out.putInt(icons.size());
+		for (Iterator it = icons.entrySet().iterator(); it.hasNext();) {
+			Map.Entry entry = (Map.Entry) it.next();
+			out.putString((String) entry.getKey());
+			out.putString((String) entry.getValue());
+		}
+	}
+
+	private static final class Glob {
+		final String pattern;
+		final String mimeType;
+		final int weight;
+
+		Glob(String pattern, String mimeType, int weight) {
+			this.pattern = pattern;
+			this.mimeType = mimeType;
+			this.weight = weight;
+		}
+	}
+
+	private static final class SuffixNode {
+		final List leaves = new ArrayList();
+		final Map children = new TreeMap();
+
+		int size() {
+			return leaves.size() + children.size();
+		}
+	}
+
+	private static final class MagicEntry {
+		int priority;
+		String mimeType;
+		Matchlet[] matchlets;
+	}
+
+	private static final class Matchlet {
+		int rangeStart;
+		int rangeLength;
+		int wordSize;
+		byte[] value;
+		byte[] mask;
+		Matchlet[] children;
+	}
+
+	// A block of entries still to be written and where to put its offset
+	private static final class Block {
+		final Object content;
+		final int patchOffset;
+
+		Block(Object content, int patchOffset) {
+			this.content = content;
+			this.patchOffset = patchOffset;
+		}
+	}
+
+	// Growable big endian output. Strings and byte values are written as offsets
+	// and appended after everything else when the content is complete, each
+	// distinct string only once.
+	private static final class Output {
+		private byte[] buf = new byte[65536];
+		private int size;
+		private final List references = new ArrayList();
+
+		int size() {
+			return size;
+		}
+
+		void putShort(int value) {
+			ensure(2);
+			buf[size++] = (byte) (value >> 8);
+			buf[size++] = (byte) value;
+		}
+
+		void putInt(int value) {
+			ensure(4);
+			putIntAt(size, value);
+			size += 4;
+		}
+
+		void putIntAt(int offset, int value) {
+			buf[offset] = (byte) (value >> 24);
+			buf[offset + 1] = (byte) (value >> 16);
+			buf[offset + 2] = (byte) (value >> 8);
+			buf[offset + 3] = (byte) value;
+		}
+
+		void putString(String value) {
+			references.add(new Block(value, size));
+			putInt(0);
+		}
+
+		void putBytes(byte[] value) {
+			references.add(new Block(value, size));
+			putInt(0);
+		}
+
+		byte[] toByteArray() {
+			Map strings = new HashMap();
+			for (Iterator it = references.iterator(); it.hasNext();) {
+				Block reference = (Block) it.next();
+				if (reference.content instanceof String) {
+					String value = (String) reference.content;
+					Integer offset = (Integer) strings.get(value);
+					if (offset == null) {
+						offset = new Integer(size);
+						strings.put(value, offset);
+						ensure(value.length() + 1);
+						for (int i = 0; i < value.length(); i++) {
+							buf[size++] = (byte) value.charAt(i);
+						}
+						buf[size++] = 0;
+					}
+					putIntAt(reference.patchOffset, offset.intValue());
+				} else {
+					byte[] value = (byte[]) reference.content;
+					putIntAt(reference.patchOffset, size);
+					ensure(value.length);
+					System.arraycopy(value, 0, buf, size, value.length);
+					size += value.length;
+				}
+			}
+			byte[] content = new byte[size];
+			System.arraycopy(buf, 0, content, 0, size);
+			return content;
+		}
+
+		private void ensure(int length) {
+			if (size + length > buf.length) {
+				byte[] _buf = new byte[Math.max(buf.length * 2, size + length)];
+				System.arraycopy(buf, 0, _buf, 0, size);
+				buf = _buf;
+			}
+		}
+	}
+}
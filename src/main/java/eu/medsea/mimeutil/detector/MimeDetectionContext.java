@@ -0,0 +1,136 @@
+/*
+ * Copyright 2007-2009 Medsea Business Solutions S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.medsea.mimeutil.detector;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * A MimeDetectionContext is created by the MimeDetectorRegistry once for each call to
+ * MimeUtil2.getMimeTypes(File file) and is handed to every registered MimeDetector in turn.
+ * </p>
+ * <p>
+ * It holds the header of the file, that is the first n bytes where n is the largest value returned
+ * from the MimeDetector.getHeaderLength() method of the registered MimeDetector(s). The header is read
+ * the first time it is asked for and then shared, so the file is opened at most once regardless of how
+ * many MimeDetector(s) want to look at its content.
+ * </p>
+ * <p>
+ * The header array is always headerLength bytes long. If the file is shorter than this the remaining bytes
+ * are zero, in the same way as they would be when reading a fixed size block from an InputStream. Use
+ * getLength() to find out how many bytes were actually read from the file.
+ * </p>
+ */
+public final class MimeDetectionContext {
+
+	private static Logger log = LoggerFactory.getLogger(MimeDetectionContext.class);
+
+	private final File file;
+	private final int headerLength;
+
+	private byte [] header;
+	private int length;
+	private boolean headerRead;
+
+	/**
+	 * Create a context for the file
+	 * @param file the file the mime types are to be detected for
+	 * @param headerLength the number of bytes to read from the start of the file
+	 */
+	public MimeDetectionContext(final File file, final int headerLength) {
+		this.file = file;
+		this.headerLength = headerLength;
+	}
+
+	/**
+	 * Get the file this context was created for
+	 * @return the file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Get the size of the header that will be or has been read
+	 * @return the header length
+	 */
+	public int getHeaderLength() {
+		return headerLength;
+	}
+
+	/**
+	 * Get the header of the file. The file is read on the first call only.
+	 * @return zero padded byte array of getHeaderLength() bytes, or null if the file could not be read
+	 * or no MimeDetector asked for any content.
+	 */
+	public byte [] getHeader() {
+		if(!headerRead) {
+			headerRead = true;
+			readHeader();
+		}
+		return header;
+	}
+
+	/**
+	 * Get the number of bytes read from the file into the header.
+	 * @return actual length of the content in the header, 0 if the header could not be read
+	 */
+	public int getLength() {
+		getHeader();
+		return length;
+	}
+
+	private void readHeader() {
+		if(headerLength <= 0 || !file.exists()) {
+			return;
+		}
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			byte [] data = new byte [headerLength];
+			int offset = 0;
+			// Since an InputStream might return only some data (not all
+			// requested), we have to read in a loop until
+			// either EOF is reached or the desired number of bytes have been
+			// read.
+			int restBytesToRead = headerLength;
+			while (restBytesToRead > 0) {
+				int bytesRead = in.read(data, offset, restBytesToRead);
+				if (bytesRead < 0)
+					break; // EOF
+
+				offset += bytesRead;
+				restBytesToRead -= bytesRead;
+			}
+			header = data;
+			length = offset;
+		}catch(IOException e) {
+			// Leave the header as null so that MimeDetector(s) can fall back to their
+			// own file handling and report the problem as they normally would
+			if(log.isDebugEnabled()) {
+				log.debug("Unable to read header of file [" + file.getAbsolutePath() + "]", e);
+			}
+		}finally {
+			MimeDetector.closeStream(in);
+		}
+	}
+}
@@ -25,6 +25,17 @@ import java.util.Collection;
  *
  */
 public abstract class MimeDetector {
+
+	/**
+	 * Input kinds returned from getSupportedInputs(). Combine them with | to declare more than one.
+	 */
+	public static final int INPUT_FILE_NAME = 1;
+	public static final int INPUT_FILE = 2;
+	public static final int INPUT_URL = 4;
+	public static final int INPUT_STREAM = 8;
+	public static final int INPUT_BYTE_ARRAY = 16;
+	public static final int INPUT_ALL = INPUT_FILE_NAME | INPUT_FILE | INPUT_URL | INPUT_STREAM | INPUT_BYTE_ARRAY;
+
 	/**
 	 * Gets the name of this MimeDetector
 	 * @return name of MimeDetector as a fully qualified class name
@@ -53,6 +64,18 @@ public abstract class MimeDetector {
 		return getMimeTypesFile(file);
 	}
 
+	/**
+	 * Called by MimeUtil.MimeDetectorRegistry.getMimeTypes(File file) {}
+	 * when the file header has already been read into a MimeDetectionContext
+	 * shared by all registered MimeDetector(s).
+	 * @param context
+	 * @return
+	 * @throws UnsupportedOperationException
+	 */
+	public final Collection getMimeTypes(final MimeDetectionContext context) throws UnsupportedOperationException {
+		return getMimeTypesContext(context);
+	}
+
 	/**
 	 * Called by MimeUtil.MimeDetectorRegistry.getMimeTypes(URL url) {}
 	 * @param fileName
@@ -97,9 +120,45 @@ public abstract class MimeDetector {
 	/**
 	 * You can override this method if for instance you allocated any resources in the init() method
 	 * that need to be closed or deallocated specially.
+	 * <p>
+	 * This is called as soon as the MimeDetector is unregistered, while detections that started before
+	 * may still be using it. An implementation must therefore leave the MimeDetector able to finish
+	 * those detections, and must cope with being called more than once.
+	 * </p>
 	 */
 	public void delete() {}
 
+	/**
+	 * Get the number of bytes from the start of a file this MimeDetector needs to see to
+	 * detect its mime types. The MimeDetectorRegistry reads the largest header required by
+	 * any registered MimeDetector only once and shares it through the MimeDetectionContext.
+	 * The default of 0 means this MimeDetector does not use the shared header.
+	 * @return the number of bytes required from the start of a file.
+	 */
+	public int getHeaderLength() {
+		return 0;
+	}
+
+	/**
+	 * Get the kinds of input this MimeDetector can detect mime types from. The MimeDetectorRegistry does not
+	 * call a MimeDetector at all for an input kind it does not support, which is much cheaper than having the
+	 * MimeDetector throw an UnsupportedOperationException on every call.
+	 * The default is INPUT_ALL. Override this if your MimeDetector does not handle some kinds of input.
+	 * @return the supported INPUT_XXX values combined with |
+	 */
+	public int getSupportedInputs() {
+		return INPUT_ALL;
+	}
+
+	/**
+	 * Check if this MimeDetector supports an input kind
+	 * @param input one of the INPUT_XXX values
+	 * @return true if getSupportedInputs() includes input
+	 */
+	public final boolean supports(final int input) {
+		return (getSupportedInputs() & input) != 0;
+	}
+
 	/**
 	 * Abstract method to be implement by concrete MimeDetector(s).
 	 * @return description of this MimeDetector
@@ -109,7 +168,7 @@ public abstract class MimeDetector {
 	/**
 	 * Abstract method that must be implemented by concrete MimeDetector(s). This takes a file name and is
 	 * called by the MimeUtil getMimeTypes(String fileName) getMimeTypes(File file) getMimeTypes(URL url) methods.
-	 * If your MimeDetector does not handle file names then either throw an UnsupportedOperationException or return an
+	 * If your MimeDetector does not handle file names then leave it out of getSupportedInputs() and either throw an UnsupportedOperationException or return an
 	 * empty collection.
 	 *
 	 * @param fileName
@@ -121,7 +180,7 @@ public abstract class MimeDetector {
 	/**
 	 * Abstract method that must be implemented by concrete MimeDetector(s). This takes a file object and is
 	 * called by the MimeUtil getMimeTypes(File file) method.
-	 * If your MimeDetector does not handle file names then either throw an UnsupportedOperationException or return an
+	 * If your MimeDetector does not handle file names then leave it out of getSupportedInputs() and either throw an UnsupportedOperationException or return an
 	 * empty collection.
 	 *
 	 * @param file
@@ -133,7 +192,7 @@ public abstract class MimeDetector {
 	/**
 	 * Abstract method that must be implemented by concrete MimeDetector(s). This takes a URL object and is
 	 * called by the MimeUtil getMimeTypes(URL url) method.
-	 * If your MimeDetector does not handle file names then either throw an UnsupportedOperationException or return an
+	 * If your MimeDetector does not handle file names then leave it out of getSupportedInputs() and either throw an UnsupportedOperationException or return an
 	 * empty collection.
 	 *
 	 * @param file
@@ -145,7 +204,7 @@ public abstract class MimeDetector {
 	/**
 	 * Abstract method that must be implemented by concrete MimeDetector(s). This takes an InputStream object and is
 	 * called by the MimeUtil getMimeTypes(URL url), getMimeTypes(File file) and getMimeTypes(InputStream in) methods.
-	 * If your MimeDetector does not handle InputStream objects then either throw an UnsupportedOperationException or return an
+	 * If your MimeDetector does not handle InputStream objects then leave it out of getSupportedInputs() and either throw an UnsupportedOperationException or return an
 	 * empty collection.
 	 * <p>
 	 * If the InputStream passed in does not support the mark() and reset() methods a MimeException will be thrown
@@ -169,7 +228,7 @@ public abstract class MimeDetector {
 	/**
 	 * Abstract method that must be implemented by concrete MimeDetector(s). This takes a byte [] object and is
 	 * called by the MimeUtil getMimeTypes(byte []) method.
-	 * If your MimeDetector does not handle byte [] objects then either throw an UnsupportedOperationException or return an
+	 * If your MimeDetector does not handle byte [] objects then leave it out of getSupportedInputs() and either throw an UnsupportedOperationException or return an
 	 * empty collection.
 	 *
 	 * @param data byte []. Is a byte array that you want to parse for matching mime types.
@@ -178,6 +237,20 @@ public abstract class MimeDetector {
 	 */
 	protected abstract Collection getMimeTypesByteArray(final byte [] data) throws UnsupportedOperationException;
 
+	/**
+	 * This takes a MimeDetectionContext and is called by the MimeUtil getMimeTypes(File file) method.
+	 * MimeDetector(s) that return a header length greater than 0 from getHeaderLength() should override
+	 * this method and match against the shared header instead of opening the file again.
+	 * The default implementation defers to getMimeTypesFile(File file).
+	 *
+	 * @param context holding the file and its shared header
+	 * @return Collection of matched MimeType(s)
+	 * @throws UnsupportedOperationException
+	 */
+	protected Collection getMimeTypesContext(final MimeDetectionContext context) throws UnsupportedOperationException {
+		return getMimeTypesFile(context.getFile());
+	}
+
 	protected static InputStream closeStream(InputStream in) {
 		if(in == null) {
 			return null;
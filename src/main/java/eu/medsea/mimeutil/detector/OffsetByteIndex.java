@@ -0,0 +1,147 @@
+/*
+ * Copyright 2007-2009 Medsea Business Solutions S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.medsea.mimeutil.detector;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * <p>
+ * Dispatch index over an ordered list of magic rules. Each rule is identified by its position in the list.
+ * </p>
+ * <p>
+ * A rule that can only match when the byte at its offset has one particular value is put into the bucket
+ * for that offset and byte value. Looking up a piece of content then only has to look at one bucket per
+ * distinct offset instead of evaluating every rule. Rules for which no such byte can be determined (masks,
+ * range tests, relational operators etc.) are returned as candidates for all content.
+ * </p>
+ * <p>
+ * The candidates are always returned in the original rule order so that callers get exactly the same
+ * results as a linear scan over all rules would give them.
+ * </p>
+ */
+class OffsetByteIndex {
+
+	private static final int[] EMPTY = new int[0];
+
+	// Number of rules in the index
+	private final int size;
+
+	// Sorted distinct offsets that have at least one indexed rule
+	private final int[] offsets;
+
+	// Rule positions by [offset position][byte value] in ascending order, null for empty buckets
+	private final int[][][] buckets;
+
+	// Rules that cannot be indexed in ascending order
+	private final int[] unindexed;
+
+	/**
+	 * Build the index
+	 * @param ruleOffsets the offset tested by each rule
+	 * @param ruleBytes the only byte value at the offset that allows each rule to match, or -1 if the
+	 * rule cannot be indexed.
+	 */
+	OffsetByteIndex(final int[] ruleOffsets, final int[] ruleBytes) {
+		size = ruleOffsets.length;
+
+		TreeSet distinctOffsets = new TreeSet();
+		int numUnindexed = 0;
+		for (int i = 0; i < size; i++) {
+			if (ruleBytes[i] < 0) {
+				numUnindexed++;
+			} else {
+				distinctOffsets.add(new Integer(ruleOffsets[i]));
+			}
+		}
+		offsets = new int[distinctOffsets.size()];
+		int pos = 0;
+		for (Iterator it = distinctOffsets.iterator(); it.hasNext();) {
+			offsets[pos++] = ((Integer) it.next()).intValue();
+		}
+
+		// Count, allocate and then fill the buckets so each one is exactly the right size
+		int[][] counts = new int[offsets.length][256];
+		for (int i = 0; i < size; i++) {
+			if (ruleBytes[i] >= 0) {
+				counts[Arrays.binarySearch(offsets, ruleOffsets[i])][ruleBytes[i]]++;
+			}
+		}
+		buckets = new int[offsets.length][256][];
+		for (int i = 0; i < offsets.length; i++) {
+			for (int b = 0; b < 256; b++) {
+				if (counts[i][b] > 0) {
+					buckets[i][b] = new int[counts[i][b]];
+					counts[i][b] = 0;
+				}
+			}
+		}
+		unindexed = new int[numUnindexed];
+		numUnindexed = 0;
+		for (int i = 0; i < size; i++) {
+			if (ruleBytes[i] < 0) {
+				unindexed[numUnindexed++] = i;
+			} else {
+				int o = Arrays.binarySearch(offsets, ruleOffsets[i]);
+				buckets[o][ruleBytes[i]][counts[o][ruleBytes[i]]++] = i;
+			}
+		}
+	}
+
+	/**
+	 * Get the number of rules in this index
+	 * @return number of rules
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Get the rules that could match the content
+	 * @param data the content
+	 * @param length the number of bytes of data that are valid
+	 * @return positions of the candidate rules in ascending order
+	 */
+	int[] getCandidates(final byte[] data, final int length) {
+		int count = unindexed.length;
+		for (int i = 0; i < offsets.length && offsets[i] < length; i++) {
+			int[] bucket = buckets[i][data[offsets[i]] & 0xFF];
+			if (bucket != null) {
+				count += bucket.length;
+			}
+		}
+		if (count == 0) {
+			return EMPTY;
+		}
+
+		int[] candidates = new int[count];
+		System.arraycopy(unindexed, 0, candidates, 0, unindexed.length);
+		count = unindexed.length;
+		for (int i = 0; i < offsets.length && offsets[i] < length; i++) {
+			int[] bucket = buckets[i][data[offsets[i]] & 0xFF];
+			if (bucket != null) {
+				System.arraycopy(bucket, 0, candidates, count, bucket.length);
+				count += bucket.length;
+			}
+		}
+		// Back into rule order
+		if (count > unindexed.length) {
+			Arrays.sort(candidates);
+		}
+		return candidates;
+	}
+}
@@ -16,6 +16,7 @@
 package eu.medsea.mimeutil.detector;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -25,16 +26,22 @@ import java.net.URL;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,6 +49,7 @@ import org.slf4j.LoggerFactory;
 import eu.medsea.mimeutil.MimeException;
 import eu.medsea.mimeutil.MimeType;
 import eu.medsea.mimeutil.MimeUtil;
+import eu.medsea.util.BufferPool;
 
 /**
  * <p>
@@ -55,9 +63,20 @@ import eu.medsea.mimeutil.MimeUtil;
  * applications.
  * </p>
  * <p>
+ * By default the mime.cache files of all the XDG base directories are used,
+ * that is mime/mime.cache under $XDG_DATA_HOME (~/.local/share) and under each
+ * of the $XDG_DATA_DIRS (/usr/local/share:/usr/share). When there is more than
+ * one they are merged into a single cache in memory, see MimeCacheMerger, so a
+ * lookup is still made once for all of them. When none is found the mime.cache
+ * bundled with this library is loaded from the classpath.
+ * </p>
+ * <p>
  * This implementation follows the memory mapped spec so it is not required to
  * restart an application using this mime detector should the underlying
- * mime.cache database change.
+ * mime.cache database change. A single daemon thread shared by all instances
+ * checks the file every 10 seconds and, when it has changed, maps it again and
+ * rebuilds the lookup tables in the background. Lookups switch to the new
+ * tables in one step and are never blocked by a reload.
  * </p>
  * <p>
  * For a complete description of the information contained in this file please
@@ -79,72 +98,212 @@ public class OpendesktopMimeDetector extends MimeDetector {
 	private static Logger log = LoggerFactory
 			.getLogger(OpendesktopMimeDetector.class);
 
-	private static String mimeCacheFile = "/usr/share/mime/mime.cache";
-	private static String internalMimeCacheFile = "src/main/resources/mime.cache";
+	// Classpath resource used when there is no mime.cache to be found
+	private static String internalMimeCacheFile = "/mime.cache";
+
+	// One daemon thread checks the mime.cache files of all instances
+	private static Timer timer;
+
+	// The tables built from the current content of the mime.cache files. A
+	// reload builds a new MimeCache and swaps it in. All lookups of one call
+	// are made against the same MimeCache so they never mix old and new tables.
+	private volatile MimeCache cache;
 
-	private ByteBuffer content;
+	private File[] cacheFiles;
 
-	private Timer timer;
+	private TimerTask watcher;
 
+	/**
+	 * Use a single mime.cache file. The bundled mime.cache is used while the
+	 * file does not exist.
+	 * @param mimeCacheFile path of the mime.cache file
+	 */
 	public OpendesktopMimeDetector(final String mimeCacheFile) {
-		init(mimeCacheFile);
+		init(new File[] { new File(mimeCacheFile) });
 	}
 
+	/**
+	 * Use several mime.cache files merged into one. Where they disagree the
+	 * earlier ones take precedence. Files that do not exist are left out and
+	 * the bundled mime.cache is used if none of them exists.
+	 * @param mimeCacheFiles paths of the mime.cache files, highest precedence first
+	 */
+	public OpendesktopMimeDetector(final String[] mimeCacheFiles) {
+		File[] files = new File[mimeCacheFiles.length];
+		for (int i = 0; i < files.length; i++) {
+			files[i] = new File(mimeCacheFiles[i]);
+		}
+		init(files);
+	}
+
+	/**
+	 * Use the mime.cache files of the XDG base directories.
+	 */
 	public OpendesktopMimeDetector() {
-		init(mimeCacheFile);
+		init(getXdgMimeCacheFiles());
 	}
 
-	private void init(final String mimeCacheFile) {
-		String cacheFile = mimeCacheFile;
-		if (!new File(cacheFile).exists()) {
-			cacheFile = internalMimeCacheFile;
+	private void init(final File[] cacheFiles) {
+		this.cacheFiles = cacheFiles;
 
+		if (log.isDebugEnabled()) {
+			log.debug("Registering a FileWatcher for " + Arrays.asList(cacheFiles));
 		}
-		// Map the mime.cache file as a memory mapped file
-		FileChannel rCh = null;
+		// Files that don't exist yet are watched as well so that they are used
+		// once they are created. The watcher takes its snapshot of the files
+		// before they are loaded so that a change made while loading is not missed.
+		watcher = new FileWatcher(cacheFiles) {
+			protected void onChange(File file) {
+				reload();
+			}
+		};
 		try {
-			RandomAccessFile raf = null;
-			raf = new RandomAccessFile(cacheFile, "r");
-			rCh = (raf).getChannel();
-			content = rCh.map(FileChannel.MapMode.READ_ONLY, 0, rCh.size());
+			cache = new MimeCache(load());
+		} catch (Exception e) {
+			throw new MimeException(e);
+		}
+		schedule(watcher);
+	}
 
-			// Read all of the MIME type from the Alias list
-			initMimeTypes();
+	// The mime.cache files in the XDG base directories, highest precedence first.
+	// See http://standards.freedesktop.org/basedir-spec/basedir-spec-latest.html
+	static File[] getXdgMimeCacheFiles() {
+		List dirs = new ArrayList();
+		String dataHome = getenv("XDG_DATA_HOME");
+		if (dataHome == null || dataHome.length() == 0) {
+			dataHome = System.getProperty("user.home") + File.separator + ".local"
+					+ File.separator + "share";
+		}
+		dirs.add(dataHome);
+		String dataDirs = getenv("XDG_DATA_DIRS");
+		if (dataDirs == null || dataDirs.length() == 0) {
+			dataDirs = "/usr/local/share/:/usr/share/";
+		}
+		StringTokenizer st = new StringTokenizer(dataDirs, ":");
+		while (st.hasMoreTokens()) {
+			dirs.add(st.nextToken());
+		}
 
+		List files = new ArrayList();
+		for (Iterator it = dirs.iterator(); it.hasNext();) {
+			File file = new File(new File((String) it.next(), "mime"), "mime.cache");
+			if (!files.contains(file)) {
+				files.add(file);
+			}
+		}
+		return (File[]) files.toArray(new File[files.size()]);
+	}
+
+	private static String getenv(String name) {
+		try {
+			return System.getenv(name);
+		} catch (Throwable t) {
+			// Environment variables can't be read on Java 1.4 or under a security manager
+			return null;
+		}
+	}
+
+	// Map the mime.cache files that exist and merge them if there is more than
+	// one. The bundled mime.cache is used if none of them exists.
+	private ByteBuffer load() throws IOException {
+		List caches = new ArrayList();
+		for (int i = 0; i < cacheFiles.length; i++) {
+			if (cacheFiles[i].isFile()) {
+				caches.add(map(cacheFiles[i]));
+			}
+		}
+		if (caches.isEmpty()) {
 			if (log.isDebugEnabled()) {
-				log.debug("Registering a FileWatcher for [" + cacheFile + "]");
+				log.debug("No mime.cache in " + Arrays.asList(cacheFiles)
+						+ ", using the bundled mime.cache");
 			}
-			TimerTask task = new FileWatcher(new File(cacheFile)) {
-				protected void onChange(File file) {
-					initMimeTypes();
-				}
-			};
+			return loadInternalMimeCache();
+		}
+		if (caches.size() == 1) {
+			return (ByteBuffer) caches.get(0);
+		}
+		return MimeCacheMerger.merge((ByteBuffer[]) caches
+				.toArray(new ByteBuffer[caches.size()]));
+	}
 
-			timer = new Timer();
-			// repeat the check every 10 seconds
-			timer.schedule(task, new Date(), 10000);
+	private static ByteBuffer loadInternalMimeCache() throws IOException {
+		InputStream in = OpendesktopMimeDetector.class
+				.getResourceAsStream(internalMimeCacheFile);
+		if (in == null) {
+			throw new MimeException("The bundled mime.cache ["
+					+ internalMimeCacheFile + "] is not on the classpath.");
+		}
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[8192];
+			int len;
+			while ((len = in.read(buf)) >= 0) {
+				out.write(buf, 0, len);
+			}
+			return ByteBuffer.wrap(out.toByteArray());
+		} finally {
+			closeStream(in);
+		}
+	}
 
-		} catch (Exception e) {
-			throw new MimeException(e);
+	// Map the mime.cache file as a memory mapped file
+	private static ByteBuffer map(final File file) throws IOException {
+		FileChannel rCh = new RandomAccessFile(file, "r").getChannel();
+		try {
+			return rCh.map(FileChannel.MapMode.READ_ONLY, 0, rCh.size());
 		} finally {
-			if (rCh != null) {
-				try {
-					rCh.close();
-				} catch (Exception e) {
-					log.error(e.getLocalizedMessage(), e);
-				}
+			try {
+				rCh.close();
+			} catch (Exception e) {
+				log.error(e.getLocalizedMessage(), e);
 			}
 		}
 	}
 
+	/**
+	 * Map the mime.cache files again and build new lookup tables from them.
+	 * This is called from the watcher thread when one of the files changes.
+	 * Lookups carry on against the old content until the new one is complete.
+	 * If a file cannot be read, for instance because it is being rewritten,
+	 * the old content stays in use and the next change triggers another
+	 * attempt.
+	 */
+	void reload() {
+		try {
+			cache = new MimeCache(load());
+			if (log.isDebugEnabled()) {
+				log.debug("Reloaded " + Arrays.asList(cacheFiles));
+			}
+		} catch (Exception e) {
+			log.error("Unable to reload " + Arrays.asList(cacheFiles), e);
+		}
+	}
+
+	private static synchronized void schedule(TimerTask task) {
+		if (timer == null) {
+			timer = new Timer(true);
+		}
+		try {
+			// repeat the check every 10 seconds
+			timer.schedule(task, 10000, 10000);
+		} catch (IllegalStateException e) {
+			// The timer thread has died, start a new one
+			timer = new Timer(true);
+			timer.schedule(task, 10000, 10000);
+		}
+	}
+
 	public void delete() {
-		// Cancel this timer
-		timer.cancel();
+		// Stop watching the file, the shared timer carries on for the others
+		if (watcher != null) {
+			watcher.cancel();
+		}
 	}
 
 	public String getDescription() {
+		MimeCache cache = this.cache;
 		return "Resolve mime types for files and streams using the Opendesktop shared mime.cache file. Version ["
-				+ getMajorVersion() + "." + getMinorVersion() + "].";
+				+ cache.getMajorVersion() + "." + cache.getMinorVersion() + "].";
 	}
 
 	/**
@@ -155,15 +314,8 @@ public class OpendesktopMimeDetector extends MimeDetector {
 	 * -mime-info-spec-latest.html See the Recommended checking order.
 	 */
 	public Collection getMimeTypesFileName(String fileName) {
-		Collection mimeTypes = new ArrayList();
-		// Lookup the globbing methods first
-		lookupMimeTypesForGlobFileName(fileName, mimeTypes);
-
-		if (!mimeTypes.isEmpty()) {
-			mimeTypes = normalizeWeightedMimeList((List) mimeTypes);
-		}
-
-		return mimeTypes;
+		MimeCache cache = this.cache;
+		return cache.toMimeTypes(cache.lookupFileName(fileName));
 	}
 
 	/**
@@ -175,8 +327,10 @@ public class OpendesktopMimeDetector extends MimeDetector {
 	 */
 	public Collection getMimeTypesURL(URL url) {
 
-		Collection mimeTypes = getMimeTypesFileName(url.getPath());
-		return _getMimeTypes(mimeTypes, getInputStream(url));
+		MimeCache cache = this.cache;
+		Collection mimeTypes = cache.lookupFileName(url.getPath());
+		return cache.toMimeTypes(cache._getMimeTypes(mimeTypes,
+				getInputStream(url)));
 	}
 
 	/**
@@ -189,11 +343,49 @@ public class OpendesktopMimeDetector extends MimeDetector {
 	public Collection getMimeTypesFile(File file)
 			throws UnsupportedOperationException {
 
-		Collection mimeTypes = getMimeTypesFileName(file.getName());
+		MimeCache cache = this.cache;
+		Collection mimeTypes = cache.lookupFileName(file.getName());
 		if (!file.exists()) {
-			return mimeTypes;
+			return cache.toMimeTypes(mimeTypes);
 		}
-		return _getMimeTypes(mimeTypes, getInputStream(file));
+		return cache.toMimeTypes(cache._getMimeTypes(mimeTypes,
+				getInputStream(file)));
+	}
+
+	/**
+	 * The magic rules never look further into the content than the max extents
+	 * of the mime.cache magic list.
+	 */
+	public int getHeaderLength() {
+		return cache.getMaxExtents();
+	}
+
+	/**
+	 * Same as getMimeTypesFile(File file) except that the magic data is matched
+	 * against the header shared by all MimeDetector(s) instead of opening the
+	 * file again.
+	 */
+	protected Collection getMimeTypesContext(MimeDetectionContext context)
+			throws UnsupportedOperationException {
+
+		MimeCache cache = this.cache;
+		File file = context.getFile();
+		Collection mimeTypes = cache.lookupFileName(file.getName());
+		if (!file.exists()) {
+			return cache.toMimeTypes(mimeTypes);
+		}
+		if (mimeTypes.isEmpty() || mimeTypes.size() > 1) {
+			int maxExtents = cache.getMaxExtents();
+			byte[] header = context.getHeader();
+			if (header == null || header.length < maxExtents) {
+				return cache.toMimeTypes(cache._getMimeTypes(mimeTypes,
+						getInputStream(file)));
+			}
+			// Only match the bytes read, not the padding past the end of a short file
+			return cache.toMimeTypes(cache.resolveGlobAndMagicMimeTypes(
+					mimeTypes, cache.lookupMagicData(header, context.getLength())));
+		}
+		return cache.toMimeTypes(mimeTypes);
 	}
 
 	/**
@@ -205,7 +397,8 @@ public class OpendesktopMimeDetector extends MimeDetector {
 	 */
 	public Collection getMimeTypesInputStream(InputStream in)
 			throws UnsupportedOperationException {
-		return lookupMimeTypesForMagicData(in);
+		MimeCache cache = this.cache;
+		return cache.toMimeTypes(cache.lookupMimeTypesForMagicData(in));
 	}
 
 	/**
@@ -217,589 +410,1157 @@ public class OpendesktopMimeDetector extends MimeDetector {
 	 */
 	public Collection getMimeTypesByteArray(byte[] data)
 			throws UnsupportedOperationException {
-		return lookupMagicData(data);
+		MimeCache cache = this.cache;
+		return cache.toMimeTypes(cache.lookupMagicData(data, data.length));
 	}
 
 	public String dump() {
-		return "{MAJOR_VERSION=" + getMajorVersion() + " MINOR_VERSION="
-				+ getMinorVersion() + " ALIAS_LIST_OFFSET="
-				+ getAliasListOffset() + " PARENT_LIST_OFFSET="
-				+ getParentListOffset() + " LITERAL_LIST_OFFSET="
-				+ getLiteralListOffset() + " REVERSE_SUFFIX_TREE_OFFSET="
-				+ getReverseSuffixTreeOffset() + " GLOB_LIST_OFFSET="
-				+ getGlobListOffset() + " MAGIC_LIST_OFFSET="
-				+ getMagicListOffset() + " NAMESPACE_LIST_OFFSET="
-				+ getNameSpaceListOffset() + " ICONS_LIST_OFFSET="
-				+ getIconListOffset() + " GENERIC_ICONS_LIST_OFFSET="
-				+ getGenericIconListOffset() + "}";
-	}
-
-	private Collection lookupMimeTypesForMagicData(InputStream in) {
-
-		int offset = 0;
-		int len = getMaxExtents();
-		byte[] data = new byte[len];
-		// Mark the input stream
-		in.mark(len);
+		return cache.dump();
+	}
+
+	/**
+	 * Check the parent list of the mime.cache. This is what is used to decide
+	 * whether a glob match is confirmed by a magic match.
+	 * @return true if subClass is mimeType, one of its ancestors or a super
+	 *         type of it such as text/*
+	 */
+	boolean isMimeTypeSubclass(String mimeType, String subClass) {
+		return cache.isMimeTypeSubclass(mimeType, subClass);
+	}
 
+	private static InputStream getInputStream(File file) {
 		try {
-			// Since an InputStream might return only some data (not all
-			// requested), we have to read in a loop until
-			// either EOF is reached or the desired number of bytes have been
-			// read.
-			int restBytesToRead = len;
-			while (restBytesToRead > 0) {
-				int bytesRead = in.read(data, offset, restBytesToRead);
-				if (bytesRead < 0)
-					break; // EOF
-
-				offset += bytesRead;
-				restBytesToRead -= bytesRead;
-			}
-		} catch (IOException ioe) {
-			throw new MimeException(ioe);
-		} finally {
-			try {
-				// Reset the input stream to where it was marked.
-				in.reset();
-			} catch (Exception e) {
-				throw new MimeException(e);
-			}
+			return new FileInputStream(file);
+		} catch (Exception e) {
+			log.error("Error getting InputStream for file ["
+					+ file.getAbsolutePath() + "]", e);
 		}
-		return lookupMagicData(data);
+		return null;
 	}
 
-	private Collection lookupMagicData(byte[] data) {
+	private static InputStream getInputStream(URL url) {
+		try {
+			return MimeUtil.getInputStreamForURL(url);
+		} catch (Exception e) {
+			throw new MimeException("Error getting InputStream for URL ["
+					+ url.getPath() + "]", e);
+		}
+	}
 
-		Collection mimeTypes = new ArrayList();
+	static class WeightedMimeType extends MimeType {
 
-		int listOffset = getMagicListOffset();
-		int numEntries = content.getInt(listOffset);
-		int offset = content.getInt(listOffset + 8);
+		private static final long serialVersionUID = 1L;
+		String pattern;
+		int weight;
 
-		for (int i = 0; i < numEntries; i++) {
-			String mimeType = compareToMagicData(offset + (16 * i), data);
-			if (mimeType != null) {
-				mimeTypes.add(mimeType);
-			} else {
-				String nonMatch = getMimeType(content.getInt(offset + (16 * i)
-						+ 4));
-				mimeTypes.remove(nonMatch);
-			}
+		WeightedMimeType(MimeType mimeType, String pattern, int weight) {
+			super(mimeType);
+			this.pattern = pattern;
+			this.weight = weight;
 		}
+	}
+
+	// Sorted string offsets with the decoded string for each and the shared
+	// MimeType instance for each distinct mime type string
+	private static final class StringTable {
+		final int[] offsets;
+		final String[] strings;
+		final Map mimeTypes = new HashMap();
 
-		return mimeTypes;
+		StringTable(int[] offsets) {
+			this.offsets = offsets;
+			this.strings = new String[offsets.length];
+		}
 	}
 
-	private String compareToMagicData(int offset, byte[] data) {
-		// int priority = content.getInt(offset);
-		int mimeOffset = content.getInt(offset + 4);
-		int numMatches = content.getInt(offset + 8);
-		int matchletOffset = content.getInt(offset + 12);
+	// Growable list of offsets used while building the StringTable
+	private static final class OffsetList {
+		private int[] offsets = new int[256];
+		private int size;
 
-		for (int i = 0; i < numMatches; i++) {
-			if (matchletMagicCompare(matchletOffset + (i * 32), data)) {
-				return getMimeType(mimeOffset);
+		void add(int offset) {
+			if (size == offsets.length) {
+				int[] _offsets = new int[offsets.length * 2];
+				System.arraycopy(offsets, 0, _offsets, 0, size);
+				offsets = _offsets;
 			}
+			offsets[size++] = offset;
+		}
+
+		// The offsets in ascending order without duplicates
+		int[] toSortedSet() {
+			Arrays.sort(offsets, 0, size);
+			int unique = 0;
+			for (int i = 0; i < size; i++) {
+				if (unique == 0 || offsets[unique - 1] != offsets[i]) {
+					offsets[unique++] = offsets[i];
+				}
+			}
+			int[] sorted = new int[unique];
+			System.arraycopy(offsets, 0, sorted, 0, unique);
+			return sorted;
 		}
-		return null;
 	}
 
-	private boolean matchletMagicCompare(int offset, byte[] data) {
-		int rangeStart = content.getInt(offset);
-		int rangeLength = content.getInt(offset + 4);
-		int dataLength = content.getInt(offset + 12);
-		int dataOffset = content.getInt(offset + 16);
-		int maskOffset = content.getInt(offset + 20);
+	// Parallel arrays, one entry for each glob in the glob list
+	private static final class GlobPatterns {
+		final Pattern[] patterns;
+		final String[] regex;
+		final String[] mimeTypes;
+		final int[] weights;
+
+		GlobPatterns(int size) {
+			patterns = new Pattern[size];
+			regex = new String[size];
+			mimeTypes = new String[size];
+			weights = new int[size];
+		}
+	}
 
-		for (int i = rangeStart; i <= rangeStart + rangeLength; i++) {
-			boolean validMatch = true;
-			if (i + dataLength > data.length) {
-				return false;
+	// The alias list as a map from alias to mime type and the transitive
+	// closure of the parent list. Every mime type in the parent list has an
+	// index and the set of the indices of all of its ancestors.
+	private static final class TypeHierarchy {
+		final Map aliases;
+		final Map indices;
+		final BitSet[] ancestors;
+		final String[] mediaTypes;
+
+		TypeHierarchy(Map aliases, Map indices, int size) {
+			this.aliases = aliases;
+			this.indices = indices;
+			ancestors = new BitSet[size];
+			mediaTypes = new String[size];
+		}
+	}
+
+	// The magic list as parallel arrays. Entries are in the order of the
+	// mime.cache, that is by descending priority, and index the matchlets.
+	// Matchlet values are stored already masked.
+	private static final class MagicRules {
+		final int[] priorities;
+		final String[] mimeTypes;
+		final int[] firstMatchlets;
+		final int[] numMatchlets;
+
+		final int[] rangeStarts;
+		final int[] rangeLengths;
+		final byte[][] values;
+		final byte[][] masks;
+		final int[] firstChildren;
+		final int[] numChildren;
+
+		OffsetByteIndex index;
+
+		MagicRules(int numEntries, int numMatchlets) {
+			priorities = new int[numEntries];
+			mimeTypes = new String[numEntries];
+			firstMatchlets = new int[numEntries];
+			this.numMatchlets = new int[numEntries];
+			rangeStarts = new int[numMatchlets];
+			rangeLengths = new int[numMatchlets];
+			values = new byte[numMatchlets][];
+			masks = new byte[numMatchlets][];
+			firstChildren = new int[numMatchlets];
+			numChildren = new int[numMatchlets];
+		}
+	}
+
+	// The content of the mime.cache and the lookup tables built from it. None
+	// of it changes once constructed so it can be shared by any number of
+	// threads without locking.
+	private static final class MimeCache {
+
+		private final ByteBuffer content;
+
+		// Every mime type and literal string in the mime.cache decoded once so that lookups never build strings
+		private StringTable stringTable;
+
+		// The glob list of the mime.cache compiled once so that file name lookups never compile a regex
+		private GlobPatterns globPatterns;
+
+		// The alias map and parent closure used to resolve glob and magic conflicts
+		private TypeHierarchy typeHierarchy;
+
+		// The magic list compiled into arrays with an index on the first byte
+		private MagicRules magicRules;
+
+		MimeCache(final ByteBuffer content) {
+			this.content = content;
+			initStringTable();
+			initTypeHierarchy();
+			// Read all of the MIME type from the Alias list
+			initMimeTypes();
+			initGlobPatterns();
+			initMagicRules();
+		}
+
+		String dump() {
+			return "{MAJOR_VERSION=" + getMajorVersion() + " MINOR_VERSION="
+					+ getMinorVersion() + " ALIAS_LIST_OFFSET="
+					+ getAliasListOffset() + " PARENT_LIST_OFFSET="
+					+ getParentListOffset() + " LITERAL_LIST_OFFSET="
+					+ getLiteralListOffset() + " REVERSE_SUFFIX_TREE_OFFSET="
+					+ getReverseSuffixTreeOffset() + " GLOB_LIST_OFFSET="
+					+ getGlobListOffset() + " MAGIC_LIST_OFFSET="
+					+ getMagicListOffset() + " NAMESPACE_LIST_OFFSET="
+					+ getNameSpaceListOffset() + " ICONS_LIST_OFFSET="
+					+ getIconListOffset() + " GENERIC_ICONS_LIST_OFFSET="
+					+ getGenericIconListOffset() + "}";
+		}
+
+		private Collection lookupFileName(String fileName) {
+			Collection mimeTypes = new ArrayList();
+			// Lookup the globbing methods first
+			lookupMimeTypesForGlobFileName(fileName, mimeTypes);
+
+			if (!mimeTypes.isEmpty()) {
+				mimeTypes = normalizeWeightedMimeList((List) mimeTypes);
 			}
-			if (maskOffset != 0) {
-				for (int j = 0; j < dataLength; j++) {
-					if ((content.get(dataOffset + j) & content.get(maskOffset
-							+ j)) != (data[j + i] & content.get(maskOffset + j))) {
-						validMatch = false;
+
+			return mimeTypes;
+		}
+
+		private Collection lookupMimeTypesForMagicData(InputStream in) {
+
+			int offset = 0;
+			int len = getMaxExtents();
+			byte[] data = BufferPool.borrow(len);
+			// Mark the input stream
+			in.mark(len);
+
+			try {
+				// Since an InputStream might return only some data (not all
+				// requested), we have to read in a loop until
+				// either EOF is reached or the desired number of bytes have been
+				// read.
+				int restBytesToRead = len;
+				while (restBytesToRead > 0) {
+					int bytesRead = in.read(data, offset, restBytesToRead);
+					if (bytesRead < 0)
+						break; // EOF
+
+					offset += bytesRead;
+					restBytesToRead -= bytesRead;
+				}
+				// The pooled array may hold stale bytes past offset
+				return lookupMagicData(data, offset);
+			} catch (IOException ioe) {
+				throw new MimeException(ioe);
+			} finally {
+				BufferPool.release(data);
+				try {
+					// Reset the input stream to where it was marked.
+					in.reset();
+				} catch (Exception e) {
+					throw new MimeException(e);
+				}
+			}
+		}
+
+		// Only the first dataLength bytes of data are looked at. The magic entries
+		// are sorted by descending priority, so once an entry has matched only the
+		// other entries of the same priority can still be added.
+		private Collection lookupMagicData(byte[] data, int dataLength) {
+
+			Collection mimeTypes = new ArrayList();
+			MagicRules rules = magicRules;
+
+			int length = Math.min(dataLength, data.length);
+			int[] candidates = rules.index.getCandidates(data, length);
+			int priority = -1;
+			for (int i = 0; i < candidates.length; i++) {
+				int entry = candidates[i];
+				if (priority >= 0 && rules.priorities[entry] < priority) {
+					break;
+				}
+				int first = rules.firstMatchlets[entry];
+				int last = first + rules.numMatchlets[entry];
+				for (int matchlet = first; matchlet < last; matchlet++) {
+					if (matchletMagicCompare(rules, matchlet, data, length)) {
+						priority = rules.priorities[entry];
+						if (!mimeTypes.contains(rules.mimeTypes[entry])) {
+							mimeTypes.add(rules.mimeTypes[entry]);
+						}
 						break;
 					}
 				}
+			}
+
+			return mimeTypes;
+		}
+
+		// A matchlet matches if its value is found at one of the positions of its
+		// range and, if it has any, one of its child matchlets matches as well.
+		private boolean matchletMagicCompare(MagicRules rules, int matchlet,
+				byte[] data, int length) {
+			byte[] value = rules.values[matchlet];
+			byte[] mask = rules.masks[matchlet];
+			int rangeStart = rules.rangeStarts[matchlet];
+			// The value has to fit into the data at every position looked at
+			int rangeEnd = Math.min(rangeStart + rules.rangeLengths[matchlet],
+					length - value.length + 1);
+
+			int i = rangeStart;
+			if (mask == null && value.length > 0) {
+				// Most matchlets are unmasked, skip quickly to the first byte
+				byte first = value[0];
+				for (; i < rangeEnd; i++) {
+					if (data[i] == first) {
+						int j = 1;
+						while (j < value.length && value[j] == data[j + i]) {
+							j++;
+						}
+						if (j == value.length) {
+							break;
+						}
+					}
+				}
 			} else {
-				for (int j = 0; j < dataLength; j++) {
-					if (content.get(dataOffset + j) != data[j + i]) {
-						validMatch = false;
+				for (; i < rangeEnd; i++) {
+					int j = 0;
+					while (j < value.length
+							&& value[j] == (mask == null ? data[j + i]
+									: (byte) (data[j + i] & mask[j]))) {
+						j++;
+					}
+					if (j == value.length) {
 						break;
 					}
 				}
 			}
+			if (i >= rangeEnd) {
+				return false;
+			}
 
-			if (validMatch) {
+			int numChildren = rules.numChildren[matchlet];
+			if (numChildren == 0) {
 				return true;
 			}
+			// The children don't depend on where the value was found
+			int firstChild = rules.firstChildren[matchlet];
+			for (int j = firstChild; j < firstChild + numChildren; j++) {
+				if (matchletMagicCompare(rules, j, data, length)) {
+					return true;
+				}
+			}
+			return false;
 		}
-		return false;
-	}
 
-	private void lookupGlobLiteral(String fileName, Collection mimeTypes) {
-		int listOffset = getLiteralListOffset();
-		int numEntries = content.getInt(listOffset);
+		// Copy the magic list into arrays so that lookups never read the mapped
+		// buffer. The matchlets of an entry and the children of a matchlet are
+		// given consecutive indices.
+		private void initMagicRules() {
+			int listOffset = getMagicListOffset();
+			int numEntries = content.getInt(listOffset);
+			int offset = content.getInt(listOffset + 8);
+
+			int numMatchlets = 0;
+			for (int i = 0; i < numEntries; i++) {
+				numMatchlets += countMatchlets(content.getInt(offset + (16 * i) + 8),
+						content.getInt(offset + (16 * i) + 12));
+			}
 
-		int min = 0;
-		int max = numEntries - 1;
-		while (max >= min) {
-			int mid = (min + max) / 2;
-			String literal = getString(content.getInt((listOffset + 4)
-					+ (12 * mid)));
-			int cmp = literal.compareTo(fileName);
-			if (cmp < 0) {
-				min = mid + 1;
-			} else if (cmp > 0) {
-				max = mid - 1;
-			} else {
-				String mimeType = getMimeType(content.getInt((listOffset + 4)
-						+ (12 * mid) + 4));
-				int weight = content.getInt((listOffset + 4) + (12 * mid) + 8);
-				mimeTypes.add(new WeightedMimeType(mimeType, literal, weight));
-				return;
+			MagicRules rules = new MagicRules(numEntries, numMatchlets);
+			int[] ruleOffsets = new int[numEntries];
+			int[] ruleBytes = new int[numEntries];
+			int next = 0;
+			for (int i = 0; i < numEntries; i++) {
+				rules.priorities[i] = content.getInt(offset + (16 * i));
+				rules.mimeTypes[i] = getMimeType(content.getInt(offset + (16 * i) + 4));
+				int count = content.getInt(offset + (16 * i) + 8);
+				rules.firstMatchlets[i] = next;
+				rules.numMatchlets[i] = count;
+				next = addMatchlets(rules, next, count, content.getInt(offset
+						+ (16 * i) + 12));
+
+				// An entry can only be indexed when all of its matchlets need the
+				// same byte at the same single position
+				ruleBytes[i] = -1;
+				for (int j = 0; j < count; j++) {
+					int matchlet = rules.firstMatchlets[i] + j;
+					int indexByte = -1;
+					if (rules.rangeLengths[matchlet] == 1
+							&& rules.values[matchlet].length > 0
+							&& (rules.masks[matchlet] == null || rules.masks[matchlet][0] == (byte) 0xFF)) {
+						indexByte = rules.values[matchlet][0] & 0xFF;
+					}
+					if (j == 0) {
+						ruleOffsets[i] = rules.rangeStarts[matchlet];
+						ruleBytes[i] = indexByte;
+					} else if (ruleOffsets[i] != rules.rangeStarts[matchlet]
+							|| ruleBytes[i] != indexByte) {
+						ruleBytes[i] = -1;
+					}
+					if (ruleBytes[i] < 0) {
+						break;
+					}
+				}
 			}
+			rules.index = new OffsetByteIndex(ruleOffsets, ruleBytes);
+			magicRules = rules;
 		}
-	}
 
-	private void lookupGlobFileNameMatch(String fileName, Collection mimeTypes) {
-		int listOffset = getGlobListOffset();
-		int numEntries = content.getInt(listOffset);
+		private int countMatchlets(int numMatchlets, int offset) {
+			int count = numMatchlets;
+			for (int i = 0; i < numMatchlets; i++) {
+				count += countMatchlets(content.getInt(offset + (32 * i) + 24),
+						content.getInt(offset + (32 * i) + 28));
+			}
+			return count;
+		}
 
-		for (int i = 0; i < numEntries; i++) {
-			int offset = content.getInt((listOffset + 4) + (12 * i));
-			int mimeTypeOffset = content
-					.getInt((listOffset + 4) + (12 * i) + 4);
-			int weight = content.getInt((listOffset + 4) + (12 * i) + 8);
+		// Copy numMatchlets matchlets starting at index next and then their
+		// children. Returns the next free index.
+		private int addMatchlets(MagicRules rules, int next, int numMatchlets,
+				int offset) {
+			int first = next;
+			next += numMatchlets;
+			for (int i = 0; i < numMatchlets; i++) {
+				int matchletOffset = offset + (32 * i);
+				int matchlet = first + i;
+				rules.rangeStarts[matchlet] = content.getInt(matchletOffset);
+				rules.rangeLengths[matchlet] = content.getInt(matchletOffset + 4);
+				int dataLength = content.getInt(matchletOffset + 12);
+				int dataOffset = content.getInt(matchletOffset + 16);
+				int maskOffset = content.getInt(matchletOffset + 20);
+				byte[] value = new byte[dataLength];
+				byte[] mask = maskOffset == 0 ? null : new byte[dataLength];
+				for (int j = 0; j < dataLength; j++) {
+					value[j] = content.get(dataOffset + j);
+					if (mask != null) {
+						mask[j] = content.get(maskOffset + j);
+						value[j] &= mask[j];
+					}
+				}
+				rules.values[matchlet] = value;
+				rules.masks[matchlet] = mask;
+
+				int numChildren = content.getInt(matchletOffset + 24);
+				rules.firstChildren[matchlet] = next;
+				rules.numChildren[matchlet] = numChildren;
+				next = addMatchlets(rules, next, numChildren, content
+						.getInt(matchletOffset + 28));
+			}
+			return next;
+		}
 
-			String pattern = getString(offset, true);
-			String mimeType = getMimeType(mimeTypeOffset);
+		private void lookupGlobLiteral(String fileName, Collection mimeTypes) {
+			int listOffset = getLiteralListOffset();
+			int numEntries = content.getInt(listOffset);
+
+			int min = 0;
+			int max = numEntries - 1;
+			while (max >= min) {
+				int mid = (min + max) / 2;
+				String literal = getString(content.getInt((listOffset + 4)
+						+ (12 * mid)));
+				int cmp = literal.compareTo(fileName);
+				if (cmp < 0) {
+					min = mid + 1;
+				} else if (cmp > 0) {
+					max = mid - 1;
+				} else {
+					String mimeType = getMimeType(content.getInt((listOffset + 4)
+							+ (12 * mid) + 4));
+					int weight = content.getInt((listOffset + 4) + (12 * mid) + 8);
+					mimeTypes.add(new WeightedMimeType(toMimeType(mimeType),
+							literal, weight));
+					return;
+				}
+			}
+		}
 
-			if (fileName.matches(pattern)) {
-				mimeTypes.add(new WeightedMimeType(mimeType, pattern, weight));
+		private void lookupGlobFileNameMatch(String fileName, Collection mimeTypes) {
+			GlobPatterns globs = globPatterns;
+
+			for (int i = 0; i < globs.patterns.length; i++) {
+				if (globs.patterns[i].matcher(fileName).matches()) {
+					mimeTypes.add(new WeightedMimeType(
+							toMimeType(globs.mimeTypes[i]), globs.regex[i],
+							globs.weights[i]));
+				}
 			}
 		}
-	}
 
-	private Collection normalizeWeightedMimeList(Collection weightedMimeTypes) {
-		Collection mimeTypes = new LinkedHashSet();
+		// Compile every entry in the glob list. Entries that do not make a valid
+		// regular expression can never match so they are left out.
+		private void initGlobPatterns() {
+			int listOffset = getGlobListOffset();
+			int numEntries = content.getInt(listOffset);
+
+			List patterns = new ArrayList(numEntries);
+			List regex = new ArrayList(numEntries);
+			List mimeTypes = new ArrayList(numEntries);
+			List weights = new ArrayList(numEntries);
+			for (int i = 0; i < numEntries; i++) {
+				int offset = content.getInt((listOffset + 4) + (12 * i));
+				int mimeTypeOffset = content
+						.getInt((listOffset + 4) + (12 * i) + 4);
+				int weight = content.getInt((listOffset + 4) + (12 * i) + 8);
+
+				String pattern = getString(offset, true);
+				try {
+					patterns.add(Pattern.compile(pattern));
+				} catch (PatternSyntaxException e) {
+					log.error("Ignoring glob [" + pattern + "] as it is not a valid pattern.", e);
+					continue;
+				}
+				regex.add(pattern);
+				mimeTypes.add(getMimeType(mimeTypeOffset));
+				weights.add(new Integer(weight));
+			}
 
-		// Sort the weightedMimeTypes
-		Collections.sort((List) weightedMimeTypes, new Comparator() {
-			public int compare(Object obj1, Object obj2) {
-				return ((WeightedMimeType) obj1).weight
-						- ((WeightedMimeType) obj2).weight;
+			GlobPatterns globs = new GlobPatterns(patterns.size());
+			patterns.toArray(globs.patterns);
+			regex.toArray(globs.regex);
+			mimeTypes.toArray(globs.mimeTypes);
+			for (int i = 0; i < globs.weights.length; i++) {
+				globs.weights[i] = ((Integer) weights.get(i)).intValue();
 			}
-		});
+			globPatterns = globs;
+		}
+
+		private Collection normalizeWeightedMimeList(Collection weightedMimeTypes) {
+			Collection mimeTypes = new LinkedHashSet();
 
-		// Keep only globs with the biggest weight. They are in weight order at
-		// this point
-		int weight = 0;
-		int patternLen = 0;
-		for (Iterator it = weightedMimeTypes.iterator(); it.hasNext();) {
-			WeightedMimeType mw = (WeightedMimeType) it.next();
-			if (weight < mw.weight) {
-				weight = mw.weight;
+			// Sort the weightedMimeTypes
+			Collections.sort((List) weightedMimeTypes, new Comparator() {
+				public int compare(Object obj1, Object obj2) {
+					return ((WeightedMimeType) obj1).weight
+							- ((WeightedMimeType) obj2).weight;
+				}
+			});
+
+			// Keep only globs with the biggest weight. They are in weight order at
+			// this point
+			int weight = 0;
+			int patternLen = 0;
+			for (Iterator it = weightedMimeTypes.iterator(); it.hasNext();) {
+				WeightedMimeType mw = (WeightedMimeType) it.next();
+				if (weight < mw.weight) {
+					weight = mw.weight;
+				}
+				if (weight >= mw.weight) {
+					if (mw.pattern.length() > patternLen) {
+						patternLen = mw.pattern.length();
+					}
+					mimeTypes.add(mw);
+				}
 			}
-			if (weight >= mw.weight) {
-				if (mw.pattern.length() > patternLen) {
-					patternLen = mw.pattern.length();
+
+			// Now keep only the longest patterns
+			for (Iterator it = weightedMimeTypes.iterator(); it.hasNext();) {
+				WeightedMimeType mw = (WeightedMimeType) it.next();
+				if (mw.pattern.length() < patternLen) {
+					mimeTypes.remove(mw);
 				}
-				mimeTypes.add(mw);
 			}
-		}
 
-		// Now keep only the longest patterns
-		for (Iterator it = weightedMimeTypes.iterator(); it.hasNext();) {
-			WeightedMimeType mw = (WeightedMimeType) it.next();
-			if (mw.pattern.length() < patternLen) {
-				mimeTypes.remove(mw);
+			// Could possibly have multiple mimeTypes here with the same weight and
+			// pattern length. Can even have multiple entries for the same type so
+			// lets remove
+			// any duplicates by copying entries to a HashSet that can only have a
+			// single instance
+			// of each type
+			Collection _mimeTypes = new HashSet();
+			for (Iterator it = mimeTypes.iterator(); it.hasNext();) {
+				_mimeTypes.add(((WeightedMimeType) it.next()).toString());
 			}
+			return _mimeTypes;
 		}
 
-		// Could possibly have multiple mimeTypes here with the same weight and
-		// pattern length. Can even have multiple entries for the same type so
-		// lets remove
-		// any duplicates by copying entries to a HashSet that can only have a
-		// single instance
-		// of each type
-		Collection _mimeTypes = new HashSet();
-		for (Iterator it = mimeTypes.iterator(); it.hasNext();) {
-			_mimeTypes.add(((WeightedMimeType) it.next()).toString());
-		}
-		return _mimeTypes;
-	}
+		private void lookupMimeTypesForGlobFileName(String fileName,
+				Collection mimeTypes) {
+			if (fileName == null) {
+				return;
+			}
 
-	private void lookupMimeTypesForGlobFileName(String fileName,
-			Collection mimeTypes) {
-		if (fileName == null) {
-			return;
-		}
+			lookupGlobLiteral(fileName, mimeTypes);
+			if (!mimeTypes.isEmpty()) {
+				return;
+			}
 
-		lookupGlobLiteral(fileName, mimeTypes);
-		if (!mimeTypes.isEmpty()) {
-			return;
+			lookupGlobSuffix(fileName, mimeTypes);
+
+			if (mimeTypes.isEmpty()) {
+				lookupGlobFileNameMatch(fileName, mimeTypes);
+			}
 		}
 
-		int len = fileName.length();
-		lookupGlobSuffix(fileName, false, len, mimeTypes);
+		// Walk the reverse suffix tree from the last character of the file name
+		// backwards. The case sensitive and the case insensitive walk are done in
+		// the same pass, they only need separate lookups once they reach a
+		// character that lower cases to something different. Each walk remembers
+		// the deepest node it matched that has mime types (leaves) under it.
+		// Leaves always sort first as their character is 0. The case sensitive
+		// result is used if it found any leaves, otherwise the case insensitive
+		// one. Nothing is allocated unless a match is found.
+		private void lookupGlobSuffix(String fileName, Collection mimeTypes) {
+			int listOffset = getReverseSuffixTreeOffset();
+			int len = fileName.length();
+
+			// Case sensitive walk
+			int numEntries = content.getInt(listOffset);
+			int offset = content.getInt(listOffset + 4);
+			int matched = 0;
+			int leafEntries = 0;
+			int leafOffset = -1;
+			boolean alive = true;
+
+			// Case insensitive walk
+			int _numEntries = numEntries;
+			int _offset = offset;
+			int _matched = 0;
+			int _leafEntries = 0;
+			int _leafOffset = -1;
+			boolean _alive = true;
+
+			// True while both walks are on the same node
+			boolean shared = true;
+
+			for (int pos = len - 1; pos >= 0 && (alive || _alive); pos--) {
+				char character = fileName.charAt(pos);
+				if (character == 0) {
+					break;
+				}
+				if (alive) {
+					int node = findSuffixNode(numEntries, offset, character);
+					if (node < 0) {
+						alive = false;
+					} else {
+						matched++;
+						numEntries = content.getInt(node + 4);
+						offset = content.getInt(node + 8);
+						if (numEntries > 0 && content.getInt(offset) == 0) {
+							leafEntries = numEntries;
+							leafOffset = offset;
+						}
+					}
+				}
+				if (_alive) {
+					char lowerCase = Character.toLowerCase(character);
+					if (shared && lowerCase == character) {
+						// Same node as the case sensitive walk so no need to look it up again
+						_alive = alive;
+						_matched = matched;
+						_numEntries = numEntries;
+						_offset = offset;
+						_leafEntries = leafEntries;
+						_leafOffset = leafOffset;
+						continue;
+					}
+					shared = false;
+					int node = findSuffixNode(_numEntries, _offset, lowerCase);
+					if (node < 0) {
+						_alive = false;
+					} else {
+						_matched++;
+						_numEntries = content.getInt(node + 4);
+						_offset = content.getInt(node + 8);
+						if (_numEntries > 0 && content.getInt(_offset) == 0) {
+							_leafEntries = _numEntries;
+							_leafOffset = _offset;
+						}
+					}
+				}
+			}
 
-		if (mimeTypes.isEmpty()) {
-			lookupGlobSuffix(fileName, true, len, mimeTypes);
-		}
-		if (mimeTypes.isEmpty()) {
-			lookupGlobFileNameMatch(fileName, mimeTypes);
+			if (leafOffset != -1) {
+				addSuffixLeaves(leafEntries, leafOffset, getSuffixPattern(fileName,
+						matched, false), mimeTypes);
+			} else if (_leafOffset != -1) {
+				addSuffixLeaves(_leafEntries, _leafOffset, getSuffixPattern(
+						fileName, _matched, true), mimeTypes);
+			}
 		}
-	}
 
-	private void lookupGlobSuffix(String fileName, boolean ignoreCase, int len,
-			Collection mimeTypes) {
+		// Binary search one level of the reverse suffix tree for a character.
+		// Returns the offset of the matching node or -1.
+		private int findSuffixNode(int numEntries, int offset, char character) {
+			int min = 0;
+			int max = numEntries - 1;
+			while (max >= min) {
+				int mid = (min + max) / 2;
+				char matchChar = (char) content.getInt(offset + (12 * mid));
+				if (matchChar < character) {
+					min = mid + 1;
+				} else if (matchChar > character) {
+					max = mid - 1;
+				} else {
+					return offset + (12 * mid);
+				}
+			}
+			return -1;
+		}
 
-		int listOffset = getReverseSuffixTreeOffset();
-		int numEntries = content.getInt(listOffset);
-		int offset = content.getInt(listOffset + 4);
+		private void addSuffixLeaves(int numEntries, int offset, String pattern,
+				Collection mimeTypes) {
+			for (int i = 0; i < numEntries; i++) {
+				if (content.getInt(offset + (12 * i)) != 0) {
+					break;
+				}
+				int mimeOffset = content.getInt(offset + (12 * i) + 4);
+				int weight = content.getInt(offset + (12 * i) + 8);
+				mimeTypes.add(new WeightedMimeType(toMimeType(getMimeType(mimeOffset)),
+						pattern, weight));
+			}
+		}
 
-		lookupGlobNodeSuffix(fileName, numEntries, offset, ignoreCase, len,
-				mimeTypes, new StringBuffer());
-	}
+		// The matched characters in the order they were walked, that is the end of
+		// the file name reversed. The first character of the name is never part of
+		// it. Only its length matters when the results are normalised.
+		private String getSuffixPattern(String fileName, int matched,
+				boolean ignoreCase) {
+			int len = fileName.length();
+			int count = Math.min(matched, len - 1);
+			StringBuffer pattern = new StringBuffer(count);
+			for (int i = 1; i <= count; i++) {
+				char character = fileName.charAt(len - i);
+				pattern.append(ignoreCase ? Character.toLowerCase(character)
+						: character);
+			}
+			return pattern.toString();
+		}
 
-	private void lookupGlobNodeSuffix(String fileName, int numEntries,
-			int offset, boolean ignoreCase, int len, Collection mimeTypes,
-			StringBuffer pattern) {
-		char character = ignoreCase ? fileName.toLowerCase().charAt(len - 1)
-				: fileName.charAt(len - 1);
+		private int getMaxExtents() {
+			return content.getInt(getMagicListOffset() + 4);
+		}
 
-		if (character == 0) {
-			return;
+		// The canonical name of an alias, or the mime type itself
+		private String unaliasMimeType(TypeHierarchy hierarchy, String mimeType) {
+			String lookup = (String) hierarchy.aliases.get(mimeType);
+			return lookup == null ? mimeType : lookup;
 		}
 
-		int min = 0;
-		int max = numEntries - 1;
-		while (max >= min && len >= 0) {
-			int mid = (min + max) / 2;
+		private boolean isMimeTypeSubclass(String mimeType, String subClass) {
+			TypeHierarchy hierarchy = typeHierarchy;
+			String umimeType = unaliasMimeType(hierarchy, mimeType);
+			String usubClass = unaliasMimeType(hierarchy, subClass);
 
-			char matchChar = (char) content.getInt(offset + (12 * mid));
-			if (matchChar < character) {
-				min = mid + 1;
-			} else if (matchChar > character) {
-				max = mid - 1;
-			} else {
-				len--;
-				int numChildren = content.getInt(offset + (12 * mid) + 4);
-				int childOffset = content.getInt(offset + (12 * mid) + 8);
-				if (len > 0) {
-					pattern.append(matchChar);
-					lookupGlobNodeSuffix(fileName, numChildren, childOffset,
-							ignoreCase, len, mimeTypes, pattern);
-				}
-				if (mimeTypes.isEmpty()) {
-					for (int i = 0; i < numChildren; i++) {
-						matchChar = (char) content.getInt(childOffset
-								+ (12 * i));
-						if (matchChar != 0) {
-							break;
-						}
+			if (umimeType.equals(usubClass)) {
+				return true;
+			}
+			if (usubClass.equals("application/octet-stream")) {
+				return true;
+			}
+
+			Integer index = (Integer) hierarchy.indices.get(umimeType);
+			if (index != null) {
+				Integer subClassIndex = (Integer) hierarchy.indices.get(usubClass);
+				if (subClassIndex != null
+						&& hierarchy.ancestors[index.intValue()].get(subClassIndex
+								.intValue())) {
+					return true;
+				}
+			}
 
-						int mimeOffset = content.getInt(childOffset + (12 * i)
-								+ 4);
-						int weight = content.getInt(childOffset + (12 * i) + 8);
-						mimeTypes.add(new WeightedMimeType(
-								getMimeType(mimeOffset), pattern.toString(),
-								weight));
+			// A super type such as text/* matches any type of the same media type
+			// in the hierarchy and text/plain matches any text type. Both are rare.
+			String mediaType;
+			if (isSuperType(usubClass)) {
+				mediaType = toMimeType(usubClass).getMediaType();
+			} else if (usubClass.equals("text/plain")) {
+				mediaType = "text";
+			} else {
+				return false;
+			}
+			if (toMimeType(umimeType).getMediaType().equals(mediaType)) {
+				return true;
+			}
+			if (index != null) {
+				BitSet ancestors = hierarchy.ancestors[index.intValue()];
+				for (int i = ancestors.nextSetBit(0); i >= 0; i = ancestors
+						.nextSetBit(i + 1)) {
+					if (hierarchy.mediaTypes[i].equals(mediaType)) {
+						return true;
 					}
 				}
-				return;
 			}
+			return false;
 		}
-	}
 
-	class WeightedMimeType extends MimeType {
-
-		private static final long serialVersionUID = 1L;
-		String pattern;
-		int weight;
-
-		WeightedMimeType(String mimeType, String pattern, int weight) {
-			super(mimeType);
-			this.pattern = pattern;
-			this.weight = weight;
+		private boolean isSuperType(String mimeType) {
+			return mimeType.endsWith("/*");
 		}
-	}
 
-	private int getMaxExtents() {
-		return content.getInt(getMagicListOffset() + 4);
-	}
+		// Build the alias map and, for every mime type in the parent list, the set
+		// of all of its ancestors so that isMimeTypeSubclass() never has to walk
+		// the parent list. Parents are unaliased at each level in the same way as
+		// the mime types being checked.
+		private void initTypeHierarchy() {
+			Map aliases = new HashMap();
+			int listOffset = getAliasListOffset();
+			int numEntries = content.getInt(listOffset);
+			for (int i = 0; i < numEntries; i++) {
+				aliases.put(getMimeType(content.getInt((listOffset + 4) + (8 * i))),
+						getMimeType(content.getInt((listOffset + 8) + (8 * i))));
+			}
 
-	private String aliasLookup(String alias) {
-		int aliasListOffset = getAliasListOffset();
-		int min = 0;
-		int max = content.getInt(aliasListOffset) - 1;
+			Map indices = new HashMap();
+			List types = new ArrayList();
+			List parents = new ArrayList();
+			listOffset = getParentListOffset();
+			numEntries = content.getInt(listOffset);
+			for (int i = 0; i < numEntries; i++) {
+				int index = getTypeIndex(getMimeType(content.getInt((listOffset + 4)
+						+ (8 * i))), indices, types, parents);
+				int parentsOffset = content.getInt((listOffset + 4) + (8 * i) + 4);
+				int numParents = content.getInt(parentsOffset);
+				int[] _parents = new int[numParents];
+				for (int j = 0; j < numParents; j++) {
+					String parent = getMimeType(content.getInt((parentsOffset + 4)
+							+ (4 * j)));
+					String uparent = (String) aliases.get(parent);
+					_parents[j] = getTypeIndex(uparent == null ? parent : uparent,
+							indices, types, parents);
+				}
+				parents.set(index, _parents);
+			}
 
-		while (max >= min) {
-			int mid = (min + max) / 2;
-			// content.position((aliasListOffset + 4) + (mid * 8));
+			TypeHierarchy hierarchy = new TypeHierarchy(aliases, indices, types
+					.size());
+			for (int i = 0; i < hierarchy.ancestors.length; i++) {
+				String type = (String) types.get(i);
+				int slash = type.indexOf('/');
+				hierarchy.mediaTypes[i] = slash < 0 ? type : type.substring(0, slash);
+				hierarchy.ancestors[i] = new BitSet(types.size());
+				addAncestors(i, parents, hierarchy.ancestors[i]);
+			}
+			typeHierarchy = hierarchy;
+		}
 
-			int aliasOffset = content.getInt((aliasListOffset + 4) + (mid * 8));
-			int mimeOffset = content.getInt((aliasListOffset + 4) + (mid * 8)
-					+ 4);
+		private int getTypeIndex(String mimeType, Map indices, List types,
+				List parents) {
+			Integer index = (Integer) indices.get(mimeType);
+			if (index == null) {
+				index = new Integer(types.size());
+				indices.put(mimeType, index);
+				types.add(mimeType);
+				parents.add(null);
+			}
+			return index.intValue();
+		}
 
-			int cmp = getMimeType(aliasOffset).compareTo(alias);
-			if (cmp < 0) {
-				min = mid + 1;
-			} else if (cmp > 0) {
-				max = mid - 1;
-			} else {
-				return getMimeType(mimeOffset);
+		// Depth first walk of the parents. The set doubles as the visited set so
+		// a cycle in the parent list cannot recurse forever.
+		private void addAncestors(int index, List parents, BitSet ancestors) {
+			int[] _parents = (int[]) parents.get(index);
+			if (_parents == null) {
+				return;
+			}
+			for (int i = 0; i < _parents.length; i++) {
+				if (!ancestors.get(_parents[i])) {
+					ancestors.set(_parents[i]);
+					addAncestors(_parents[i], parents, ancestors);
+				}
 			}
 		}
-		return null;
-	}
 
-	private String unaliasMimeType(String mimeType) {
-		String lookup = aliasLookup(mimeType);
-		return lookup == null ? mimeType : lookup;
-	}
+		private int getGenericIconListOffset() {
+			return content.getInt(36);
+		}
 
-	private boolean isMimeTypeSubclass(String mimeType, String subClass) {
-		String umimeType = unaliasMimeType(mimeType);
-		String usubClass = unaliasMimeType(subClass);
-		MimeType _mimeType = new MimeType(umimeType);
-		MimeType _subClass = new MimeType(usubClass);
+		private int getIconListOffset() {
+			return content.getInt(32);
+		}
 
-		if (umimeType.compareTo(usubClass) == 0) {
-			return true;
+		private int getNameSpaceListOffset() {
+			return content.getInt(28);
 		}
 
-		if (isSuperType(usubClass)
-				&& (_mimeType.getMediaType().equals(_subClass.getMediaType()))) {
-			return true;
+		private int getMagicListOffset() {
+			return content.getInt(24);
 		}
 
-		// Handle special cases text/plain and application/octet-stream
-		if (usubClass.equals("text/plain")
-				&& _mimeType.getMediaType().equals("text")) {
-			return true;
+		private int getGlobListOffset() {
+			return content.getInt(20);
 		}
 
-		if (usubClass.equals("application/octet-stream")) {
-			return true;
+		private int getReverseSuffixTreeOffset() {
+			return content.getInt(16);
 		}
-		int parentListOffset = getParentListOffset();
-		int numParents = content.getInt(parentListOffset);
-		int min = 0;
-		int max = numParents - 1;
-		while (max >= min) {
-			int med = (min + max) / 2;
-			int offset = content.getInt((parentListOffset + 4) + (8 * med));
-			String parentMime = getMimeType(offset);
-			int cmp = parentMime.compareTo(umimeType);
-			if (cmp < 0) {
-				min = med + 1;
-			} else if (cmp > 0) {
-				max = med - 1;
-			} else {
-				offset = content.getInt((parentListOffset + 4) + (8 * med) + 4);
-				int _numParents = content.getInt(offset);
-				for (int i = 0; i < _numParents; i++) {
-					int parentOffset = content.getInt((offset + 4) + (4 * i));
-					if (isMimeTypeSubclass(getMimeType(parentOffset), usubClass)) {
-						return true;
-					}
-				}
-				break;
-			}
+
+		private int getLiteralListOffset() {
+			return content.getInt(12);
 		}
-		return false;
-	}
 
-	private boolean isSuperType(String mimeType) {
-		String type = mimeType.substring(mimeType.length() - 2);
-		if (type.equals("/*")) {
-			return true;
+		private int getParentListOffset() {
+			return content.getInt(8);
 		}
-		return false;
-	}
 
-	private int getGenericIconListOffset() {
-		return content.getInt(36);
-	}
+		private int getAliasListOffset() {
+			return content.getInt(4);
+		}
 
-	private int getIconListOffset() {
-		return content.getInt(32);
-	}
+		private short getMinorVersion() {
+			return content.getShort(2);
+		}
 
-	private int getNameSpaceListOffset() {
-		return content.getInt(28);
-	}
+		private short getMajorVersion() {
+			return content.getShort(0);
+		}
 
-	private int getMagicListOffset() {
-		return content.getInt(24);
-	}
+		private String getMimeType(int offset) {
+			return getString(offset);
+		}
 
-	private int getGlobListOffset() {
-		return content.getInt(20);
-	}
+		private String getString(int offset) {
+			StringTable table = stringTable;
+			if (table != null) {
+				int index = Arrays.binarySearch(table.offsets, offset);
+				if (index >= 0) {
+					return table.strings[index];
+				}
+			}
+			return getString(offset, false);
+		}
 
-	private int getReverseSuffixTreeOffset() {
-		return content.getInt(16);
-	}
+		// Get the shared MimeType instance for a mime type from the mime.cache.
+		// These must not be changed or handed out, see toMimeTypes(Collection).
+		private MimeType toMimeType(String mimeType) {
+			StringTable table = stringTable;
+			if (table != null) {
+				MimeType _mimeType = (MimeType) table.mimeTypes.get(mimeType);
+				if (_mimeType != null) {
+					return _mimeType;
+				}
+			}
+			return new MimeType(mimeType);
+		}
 
-	private int getLiteralListOffset() {
-		return content.getInt(12);
-	}
+		// The lookups work with mime type strings. This turns them into copies
+		// of the shared MimeType instances as MimeTypeHashSet changes the
+		// specificity of the MimeType(s) added to it. Strings that are not valid
+		// mime types are dropped here, as MimeTypeHashSet would also drop them.
+		private Collection toMimeTypes(Collection mimeTypes) {
+			Collection _mimeTypes = new ArrayList(mimeTypes.size());
+			for (Iterator it = mimeTypes.iterator(); it.hasNext();) {
+				try {
+					_mimeTypes.add(new MimeType(toMimeType((String) it.next())));
+				} catch (MimeException ignore) {
+					// Not a valid mime type
+				}
+			}
+			return _mimeTypes;
+		}
 
-	private int getParentListOffset() {
-		return content.getInt(8);
-	}
+		// Decode every string the lookups refer to by offset. That is the mime
+		// types in the alias, parent, literal, glob, suffix tree and magic lists
+		// and the file names in the literal list.
+		private void initStringTable() {
+			OffsetList offsets = new OffsetList();
+
+			int listOffset = getAliasListOffset();
+			int numEntries = content.getInt(listOffset);
+			for (int i = 0; i < numEntries; i++) {
+				offsets.add(content.getInt((listOffset + 4) + (8 * i)));
+				offsets.add(content.getInt((listOffset + 8) + (8 * i)));
+			}
 
-	private int getAliasListOffset() {
-		return content.getInt(4);
-	}
+			listOffset = getParentListOffset();
+			numEntries = content.getInt(listOffset);
+			for (int i = 0; i < numEntries; i++) {
+				offsets.add(content.getInt((listOffset + 4) + (8 * i)));
+				int parentsOffset = content.getInt((listOffset + 4) + (8 * i) + 4);
+				int numParents = content.getInt(parentsOffset);
+				for (int j = 0; j < numParents; j++) {
+					offsets.add(content.getInt((parentsOffset + 4) + (4 * j)));
+				}
+			}
 
-	private short getMinorVersion() {
-		return content.getShort(2);
-	}
+			listOffset = getLiteralListOffset();
+			numEntries = content.getInt(listOffset);
+			for (int i = 0; i < numEntries; i++) {
+				offsets.add(content.getInt((listOffset + 4) + (12 * i)));
+				offsets.add(content.getInt((listOffset + 4) + (12 * i) + 4));
+			}
 
-	private short getMajorVersion() {
-		return content.getShort(0);
-	}
+			listOffset = getGlobListOffset();
+			numEntries = content.getInt(listOffset);
+			for (int i = 0; i < numEntries; i++) {
+				offsets.add(content.getInt((listOffset + 4) + (12 * i) + 4));
+			}
 
-	private String getMimeType(int offset) {
-		return getString(offset);
-	}
+			listOffset = getReverseSuffixTreeOffset();
+			addSuffixTreeMimeTypes(content.getInt(listOffset), content
+					.getInt(listOffset + 4), offsets);
 
-	private String getString(int offset) {
-		return getString(offset, false);
-	}
+			listOffset = getMagicListOffset();
+			numEntries = content.getInt(listOffset);
+			int magicOffset = content.getInt(listOffset + 8);
+			for (int i = 0; i < numEntries; i++) {
+				offsets.add(content.getInt(magicOffset + (16 * i) + 4));
+			}
 
-	private String getString(int offset, boolean regularExpression) {
-		int position = content.position();
-		content.position(offset);
-		StringBuffer buf = new StringBuffer();
-		char c = 0;
-		while ((c = (char) content.get()) != 0) {
-			if (regularExpression) {
-				switch (c) {
-				case '.':
-					buf.append("\\");
-					break;
-				case '*':
-				case '+':
-				case '?':
-					buf.append(".");
+			int[] sorted = offsets.toSortedSet();
+			StringTable table = new StringTable(sorted);
+			Map strings = new HashMap();
+			for (int i = 0; i < sorted.length; i++) {
+				String string = getString(sorted[i], false);
+				// Share one String instance for each distinct value
+				String shared = (String) strings.get(string);
+				if (shared == null) {
+					strings.put(string, string);
+					shared = string;
+					if (string.indexOf('/') > 0) {
+						try {
+							table.mimeTypes.put(string, new MimeType(string));
+						} catch (MimeException ignore) {
+							// Not a mime type so it will be parsed on use as before
+						}
+					}
 				}
+				table.strings[i] = shared;
 			}
-			buf.append(c);
+			stringTable = table;
 		}
-		// Reset position
-		content.position(position + 4);
 
-		if (regularExpression) {
-			buf.insert(0, '^');
-			buf.append('$');
+		private void addSuffixTreeMimeTypes(int numEntries, int offset,
+				OffsetList offsets) {
+			for (int i = 0; i < numEntries; i++) {
+				int character = content.getInt(offset + (12 * i));
+				if (character == 0) {
+					// A leaf holding the mime type and weight
+					offsets.add(content.getInt(offset + (12 * i) + 4));
+				} else {
+					addSuffixTreeMimeTypes(content.getInt(offset + (12 * i) + 4),
+							content.getInt(offset + (12 * i) + 8), offsets);
+				}
+			}
 		}
-		return buf.toString();
-	}
 
-	private InputStream getInputStream(File file) {
-		try {
-			return new FileInputStream(file);
-		} catch (Exception e) {
-			log.error("Error getting InputStream for file ["
-					+ file.getAbsolutePath() + "]", e);
+		// Only absolute reads are used on the content buffer so that one instance
+		// can be used by any number of threads at once without locking
+		private String getString(int offset, boolean regularExpression) {
+			StringBuffer buf = new StringBuffer();
+			char c = 0;
+			while ((c = (char) content.get(offset++)) != 0) {
+				if (regularExpression) {
+					switch (c) {
+					case '.':
+						buf.append("\\");
+						break;
+					case '*':
+					case '+':
+					case '?':
+						buf.append(".");
+					}
+				}
+				buf.append(c);
+			}
+
+			if (regularExpression) {
+				buf.insert(0, '^');
+				buf.append('$');
+			}
+			return buf.toString();
 		}
-		return null;
-	}
 
-	private InputStream getInputStream(URL url) {
-		try {
-			return MimeUtil.getInputStreamForURL(url);
-		} catch (Exception e) {
-			throw new MimeException("Error getting InputStream for URL ["
-					+ url.getPath() + "]", e);
+		private Collection _getMimeTypes(Collection mimeTypes, InputStream in) {
+
+			try {
+				if (mimeTypes.isEmpty() || mimeTypes.size() > 1) {
+					Collection _mimeTypes = lookupMimeTypesForMagicData(in = new BufferedInputStream(
+							in));
+					return resolveGlobAndMagicMimeTypes(mimeTypes, _mimeTypes);
+				}
+			} catch (Exception e) {
+				throw new MimeException(e);
+			} finally {
+				closeStream(in);
+			}
+			return mimeTypes;
+
 		}
-	}
 
-	private Collection _getMimeTypes(Collection mimeTypes, InputStream in) {
+		private Collection resolveGlobAndMagicMimeTypes(Collection mimeTypes,
+				Collection _mimeTypes) {
 
-		try {
-			if (mimeTypes.isEmpty() || mimeTypes.size() > 1) {
-				Collection _mimeTypes = getMimeTypesInputStream(in = new BufferedInputStream(
-						in));
-
-				if (!_mimeTypes.isEmpty()) {
-					if (!mimeTypes.isEmpty()) {
-						// more than one glob matched
-
-						// Check for same mime type
-						for (Iterator it = mimeTypes.iterator(); it.hasNext();) {
-							String mimeType = (String) it.next();
-							if (_mimeTypes.contains(mimeType)) {
+			if (!_mimeTypes.isEmpty()) {
+				if (!mimeTypes.isEmpty()) {
+					// more than one glob matched
+
+					// Check for same mime type
+					for (Iterator it = mimeTypes.iterator(); it.hasNext();) {
+						String mimeType = (String) it.next();
+						if (_mimeTypes.contains(mimeType)) {
+							// mimeTypes = new ArrayList();
+							mimeTypes.add(mimeType);
+							// return mimeTypes;
+						}
+						// Check for mime type subtype
+						for (Iterator _it = _mimeTypes.iterator(); _it.hasNext();) {
+							String _mimeType = (String) _it.next();
+							if (isMimeTypeSubclass(mimeType, _mimeType)) {
 								// mimeTypes = new ArrayList();
 								mimeTypes.add(mimeType);
 								// return mimeTypes;
 							}
-							// Check for mime type subtype
-							for (Iterator _it = _mimeTypes.iterator(); _it
-									.hasNext();) {
-								String _mimeType = (String) _it.next();
-								if (isMimeTypeSubclass(mimeType, _mimeType)) {
-									// mimeTypes = new ArrayList();
-									mimeTypes.add(mimeType);
-									// return mimeTypes;
-								}
-							}
 						}
-					} else {
-						// No globs matched but we have magic matches
-						return _mimeTypes;
 					}
+				} else {
+					// No globs matched but we have magic matches
+					return _mimeTypes;
 				}
 			}
-		} catch (Exception e) {
-			throw new MimeException(e);
-		} finally {
-			closeStream(in);
+			return mimeTypes;
 		}
-		return mimeTypes;
 
-	}
-
-	// The Alias list should contain just about all the mime types used by
-	// this MimeDetector so we will be content with these entries
-	private void initMimeTypes() {
+		// The Alias list should contain just about all the mime types used by
+		// this MimeDetector so we will be content with these entries
+		private void initMimeTypes() {
 
-		int listOffset = getAliasListOffset();
-		int numAliases = content.getInt(listOffset);
+			int listOffset = getAliasListOffset();
+			int numAliases = content.getInt(listOffset);
 
-		for (int i = 0; i < numAliases; i++) {
-			MimeUtil.addKnownMimeType(getString(content.getInt((listOffset + 4)
-					+ (i * 8)))); //
-			MimeUtil.addKnownMimeType(getString(content.getInt((listOffset + 8)
-					+ (i * 8))));
+			for (int i = 0; i < numAliases; i++) {
+				MimeUtil.addKnownMimeType(getString(content.getInt((listOffset + 4)
+						+ (i * 8)))); //
+				MimeUtil.addKnownMimeType(getString(content.getInt((listOffset + 8)
+						+ (i * 8))));
+			}
 		}
 	}
 }
 
 abstract class FileWatcher extends TimerTask {
-	private long timeStamp;
-	private File file;
+	private long[] timeStamps;
+	private long[] lengths;
+	private File[] files;
 
 	public FileWatcher(File file) {
-		this.file = file;
-		this.timeStamp = file.lastModified();
+		this(new File[] { file });
 	}
 
+	public FileWatcher(File[] files) {
+		this.files = files;
+		this.timeStamps = new long[files.length];
+		this.lengths = new long[files.length];
+		for (int i = 0; i < files.length; i++) {
+			timeStamps[i] = files[i].lastModified();
+			lengths[i] = files[i].length();
+		}
+	}
+
+	// onChange() is called once with the first changed file even if several
+	// files have changed
 	public final void run() {
-		long timeStamp = file.lastModified();
-		// Only do this if the file timestamp has changed
-		if (this.timeStamp != timeStamp) {
-			this.timeStamp = timeStamp;
-			onChange(file);
+		File changed = null;
+		for (int i = 0; i < files.length; i++) {
+			long timeStamp = files[i].lastModified();
+			long length = files[i].length();
+			// Only do this if the file timestamp or size has changed
+			if (timeStamps[i] != timeStamp || lengths[i] != length) {
+				timeStamps[i] = timeStamp;
+				lengths[i] = length;
+				if (changed == null) {
+					changed = files[i];
+				}
+			}
+		}
+		if (changed != null) {
+			onChange(changed);
 		}
 	}
 
@@ -45,8 +45,8 @@ import eu.medsea.mimeutil.MimeUtil;
  * or the collection will be empty.
  * </p>
  * <p>
- * This MimeDetector only performs file extension mapping, so the methods taking an InputStream and byte array
- * throw UnsupportedOperationException
+ * This MimeDetector only performs file extension mapping, so it does not declare InputStream and byte array
+ * input in getSupportedInputs() and the methods taking them throw UnsupportedOperationException
  * </p>
  *
  * @author Steven McArdle
@@ -63,6 +63,14 @@ public class WindowsRegistryMimeDetector extends MimeDetector {
 		return "Get the MIME types of file extensions from the Windows Registry. Will be inafective on non-Windows machines.";
 	}
 
+	/**
+	 * Content detection is not supported
+	 * @see MimeDetector#getSupportedInputs()
+	 */
+	public int getSupportedInputs() {
+		return INPUT_FILE_NAME | INPUT_FILE | INPUT_URL;
+	}
+
 	public Collection getMimeTypesFile(File file)
 			throws UnsupportedOperationException {
 		try {
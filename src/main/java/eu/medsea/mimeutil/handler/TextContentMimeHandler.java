@@ -0,0 +1,102 @@
+/*
+ * Copyright 2007-2009 Medsea Business Solutions S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.medsea.mimeutil.handler;
+
+import java.nio.ByteBuffer;
+
+import eu.medsea.mimeutil.TextMimeType;
+
+/**
+ * <p>
+ * A TextMimeHandler that is given the content as a CharSequence that is only decoded when it is
+ * actually needed, and then only as far as the handler asks for.
+ * </p>
+ * <p>
+ * Before anything is decoded the accepts(...) method is called with the raw bytes of the content so that
+ * a handler can cheaply turn down content it is not interested in, for instance XML content that must start
+ * with a '<'. Only if it accepts the content is the handle(...) method called with the first getContentLength()
+ * characters of the content. The content is decoded once for all of the registered handlers so later handlers
+ * that need no more characters than earlier ones cost nothing extra.
+ * </p>
+ * <pre>
+ * public class XMLHandler extends TextContentMimeHandler {
+ *     public int getContentLength() {
+ *         return 5;
+ *     }
+ *     public boolean accepts(TextMimeType mimeType, ByteBuffer content) {
+ *         return content.hasRemaining() &amp;&amp; content.get(content.position()) == '&lt;';
+ *     }
+ *     public boolean handle(TextMimeType mimeType, CharSequence content) {
+ *         if("&lt;?xml".equals(content.toString())) {
+ *             mimeType.setMimeType(new MimeType("text/xml"));
+ *         }
+ *         return false;
+ *     }
+ * }
+ * </pre>
+ * <p>
+ * Neither the ByteBuffer nor the CharSequence may be kept after the call returns.
+ * </p>
+ */
+public abstract class TextContentMimeHandler implements TextMimeHandler {
+
+	/**
+	 * Returned from getContentLength() to ask for all of the content
+	 */
+	public static final int ALL_CONTENT = -1;
+
+	/**
+	 * Get the number of characters at the start of the content this handler looks at.
+	 * The default is ALL_CONTENT.
+	 * @return the number of characters or ALL_CONTENT
+	 */
+	public int getContentLength() {
+		return ALL_CONTENT;
+	}
+
+	/**
+	 * Decide from the raw bytes of the content whether this handler is interested in it.
+	 * The bytes are in the encoding the TextMimeDetector decided on and any byte order mark has
+	 * already been skipped. The default accepts all content.
+	 * @param mimeType what the current TextMimeType looks like
+	 * @param content read only view of the bytes from its position to its limit
+	 * @return true if handle(...) should be called for this content
+	 */
+	public boolean accepts(final TextMimeType mimeType, final ByteBuffer content) {
+		return true;
+	}
+
+	/**
+	 * Called for content that has been accepted.
+	 * @param mimeType what the current TextMimeType looks like i.e. it's
+	 * current MimeType and encoding
+	 * @param content the first getContentLength() characters of the content, or fewer if the content is shorter
+	 * @return if true is returned then no more registered TextMimeHandler(s) will fire after this.
+	 * @see TextMimeHandler#handle(TextMimeType, String)
+	 */
+	public abstract boolean handle(final TextMimeType mimeType, final CharSequence content);
+
+	/**
+	 * Lets the handler still be called with the whole content as a String, in which case
+	 * accepts(...) is not consulted.
+	 * @see TextMimeHandler#handle(TextMimeType, String)
+	 */
+	public boolean handle(final TextMimeType mimeType, final String content) {
+		int length = getContentLength();
+		CharSequence prefix = length < 0 || length >= content.length() ? content : content.subSequence(0, length);
+		return handle(mimeType, prefix);
+	}
+}
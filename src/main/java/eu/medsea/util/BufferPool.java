@@ -0,0 +1,104 @@
+/*
+ * Copyright 2007-2009 Medsea Business Solutions S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.medsea.util;
+
+/**
+ * <p>
+ * Hands out byte arrays that MimeDetector(s) read the header of a stream into so that
+ * a new array does not have to be allocated for every detection.
+ * </p>
+ * <p>
+ * Each thread keeps at most MAX_POOLED_BUFFERS arrays of at most MAX_POOLED_LENGTH bytes.
+ * An array is taken away from its thread while it is borrowed, so a nested borrow on the
+ * same thread, such as the TextMimeDetector sampling a file while it holds the header,
+ * gets another pooled array. Only when all of them are borrowed is a new array allocated. Borrowed arrays may be longer than asked for and are not cleared,
+ * so callers must keep track of how many bytes they have actually filled.
+ * </p>
+ * <pre>
+ * byte [] data = BufferPool.borrow(len);
+ * try {
+ *     ...
+ * } finally {
+ *     BufferPool.release(data);
+ * }
+ * </pre>
+ */
+public class BufferPool {
+
+	/**
+	 * Arrays longer than this are never kept so that an unusually big request
+	 * does not pin its memory to the thread.
+	 */
+	public static final int MAX_POOLED_LENGTH = 64 * 1024;
+
+	/**
+	 * The number of arrays kept by each thread.
+	 */
+	public static final int MAX_POOLED_BUFFERS = 2;
+
+	private static ThreadLocal buffers = new ThreadLocal();
+
+	private BufferPool() {
+	}
+
+	/**
+	 * Get a byte array of at least length bytes. The content of the array is undefined.
+	 * @param length the minimum length of the array
+	 * @return an array from this thread's pool or a new one
+	 */
+	public static byte [] borrow(int length) {
+		byte [][] pooled = (byte [][])buffers.get();
+		if(pooled != null) {
+			for(int i = 0; i < pooled.length; i++) {
+				byte [] buffer = pooled[i];
+				if(buffer != null && buffer.length >= length) {
+					pooled[i] = null;
+					return buffer;
+				}
+			}
+		}
+		return new byte [length];
+	}
+
+	/**
+	 * Give an array back to this thread's pool. The array must no longer be used by the caller.
+	 * @param buffer the array previously returned by borrow(int)
+	 */
+	public static void release(byte [] buffer) {
+		if(buffer == null || buffer.length > MAX_POOLED_LENGTH) {
+			return;
+		}
+		byte [][] pooled = (byte [][])buffers.get();
+		if(pooled == null) {
+			pooled = new byte [MAX_POOLED_BUFFERS][];
+			buffers.set(pooled);
+		}
+		// Use a free slot or else replace the smallest array if it is smaller than this one
+		int slot = 0;
+		for(int i = 0; i < pooled.length; i++) {
+			if(pooled[i] == null) {
+				slot = i;
+				break;
+			}
+			if(pooled[i].length < pooled[slot].length) {
+				slot = i;
+			}
+		}
+		if(pooled[slot] == null || pooled[slot].length < buffer.length) {
+			pooled[slot] = buffer;
+		}
+	}
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2007-2009 Medsea Business Solutions S.L.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eu.medsea.util;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Classifies a byte array against many encodings in a single pass over the data.
+ * </p>
+ * <p>
+ * Every single byte encoding supported by the JVM, such as the ISO-8859 and windows code pages,
+ * is checked with a table that holds, for each byte value, the encodings that byte is not valid for.
+ * UTF-8, UTF-16BE and UTF-16LE are each checked by a small state machine. The cost of the pass
+ * does not depend on how many of these encodings are supported. All other encodings are left to the
+ * EncodingGuesser to check by decoding the data.
+ * </p>
+ * <p>
+ * The results are the same as decoding the data with each encoding. Decoding stops at the first
+ * malformed or unmappable byte sequence, and a truncated last character is allowed as long as at
+ * least one character is complete.
+ * </p>
+ * <pre>
+ * EncodingClassifier classifier = new EncodingClassifier(data, data.length);
+ * Collection possibleEncodings = classifier.getPossibleEncodings();
+ * String encoding = classifier.getPreferredEncoding(possibleEncodings);
+ * </pre>
+ */
+public class EncodingClassifier {
+
+	private static Logger log = LoggerFactory.getLogger(EncodingClassifier.class);
+
+	private static final String UTF_8 = "UTF-8";
+	private static final String UTF_16BE = "UTF-16BE";
+	private static final String UTF_16LE = "UTF-16LE";
+
+	// The order in which the classified encodings are preferred when more than one is possible
+	private static final String [] PREFERRED_ENCODINGS = {UTF_16LE, UTF_16BE, "US-ASCII", UTF_8, "windows-1252", "ISO-8859-1"};
+
+	// Bit index of each single byte encoding keyed by its canonical name
+	private static Map singleByteEncodings = new HashMap();
+
+	// For each byte value the bits of the single byte encodings that can't decode it
+	private static long [][] invalidBytes;
+
+	private byte [] data;
+	private int length;
+
+	// Bits of the single byte encodings the data is not valid for
+	private long [] invalid;
+
+	private boolean utf8;
+	private boolean utf16BE;
+	private boolean utf16LE;
+
+	// Number of zero bytes at even and odd offsets. UTF-16 text made up of mostly latin characters
+	// has a zero in nearly every other byte.
+	private int evenZeros;
+	private int oddZeros;
+
+	static {
+		Collection charsets = Charset.availableCharsets().values();
+		Charset [] encodings = new Charset [charsets.size()];
+		int count = 0;
+		for(Iterator it = charsets.iterator(); it.hasNext();) {
+			Charset charset = (Charset)it.next();
+			try {
+				if(charset.canEncode() && charset.newEncoder().maxBytesPerChar() == 1.0f
+						&& charset.newDecoder().maxCharsPerByte() == 1.0f) {
+					encodings[count++] = charset;
+				}
+			}catch(Exception e) {
+				// Leave it to the EncodingGuesser
+				log.debug("Can't classify the encoding [" + charset.name() + "].", e);
+			}
+		}
+		invalidBytes = new long [256][(count + 63) / 64];
+		ByteBuffer in = ByteBuffer.allocate(1);
+		CharBuffer out = CharBuffer.allocate(2);
+		for(int i = 0; i < count; i++) {
+			CharsetDecoder decoder = encodings[i].newDecoder()
+				.onMalformedInput(CodingErrorAction.REPORT)
+				.onUnmappableCharacter(CodingErrorAction.REPORT);
+			for(int b = 0; b < 256; b++) {
+				in.clear();
+				in.put((byte)b).flip();
+				out.clear();
+				decoder.reset();
+				if(decoder.decode(in, out, false).isError() || out.position() != 1) {
+					invalidBytes[b][i >> 6] |= 1L << (i & 63);
+				}
+			}
+			singleByteEncodings.put(encodings[i].name(), new Integer(i));
+		}
+	}
+
+	/**
+	 * Classify the first length bytes of data.
+	 * @param data
+	 * @param length the number of bytes at the start of data to look at
+	 */
+	public EncodingClassifier(byte [] data, int length) {
+		this.data = data;
+		this.length = data == null ? 0 : length;
+		invalid = new long [invalidBytes[0].length];
+		classify();
+	}
+
+	/**
+	 * Get the supported encodings the data could be in.
+	 * @return the Collection of possible encodings from the supported encodings
+	 * @see EncodingGuesser#getPossibleEncodings(byte[], int)
+	 */
+	public Collection getPossibleEncodings() {
+		return EncodingGuesser.getPossibleEncodings(this);
+	}
+
+	/**
+	 * Get the encoding from the possible encodings that is the most likely for the data.
+	 * This is the first of UTF-16LE or UTF-16BE, US-ASCII, UTF-8, windows-1252 and ISO-8859-1 that is possible.
+	 * UTF-16 is only preferred if the zero bytes in the data suggest it, that is at least a quarter of the bytes are
+	 * zero and all of them are at odd (UTF-16LE) or even (UTF-16BE) offsets. If none of these encodings are possible
+	 * the first of the possible encodings is returned.
+	 * @param possibleEncodings as returned from getPossibleEncodings()
+	 * @return the preferred encoding or null if possibleEncodings is empty
+	 */
+	public String getPreferredEncoding(Collection possibleEncodings) {
+		for(int i = 0; i < PREFERRED_ENCODINGS.length; i++) {
+			String encoding = PREFERRED_ENCODINGS[i];
+			if(!possibleEncodings.contains(encoding)) {
+				continue;
+			}
+			if(encoding == UTF_16LE && (evenZeros != 0 || oddZeros < length / 4)) {
+				continue;
+			}
+			if(encoding == UTF_16BE && (oddZeros != 0 || evenZeros < length / 4)) {
+				continue;
+			}
+			return encoding;
+		}
+		Iterator it = possibleEncodings.iterator();
+		return it.hasNext() ? (String)it.next() : null;
+	}
+
+	/**
+	 * True if the data holds nothing but 7 bit ASCII characters. These are the same in most encodings
+	 * so such data says little about which of them it is in.
+	 * @return true if the data is valid US-ASCII
+	 */
+	public boolean isAscii() {
+		return singleByteEncodings.containsKey("US-ASCII") && isPossible("US-ASCII");
+	}
+
+	byte [] getData() {
+		return data;
+	}
+
+	int getLength() {
+		return length;
+	}
+
+	/*
+	 * True if this class knows without decoding whether the data can be in this encoding
+	 */
+	boolean isClassified(String encoding) {
+		return singleByteEncodings.containsKey(encoding) || UTF_8.equals(encoding)
+			|| UTF_16BE.equals(encoding) || UTF_16LE.equals(encoding);
+	}
+
+	/*
+	 * Only valid for encodings where isClassified(encoding) is true
+	 */
+	boolean isPossible(String encoding) {
+		if(length == 0) {
+			return false;
+		}
+		if(UTF_8.equals(encoding)) {
+			return utf8;
+		}
+		if(UTF_16BE.equals(encoding)) {
+			return utf16BE;
+		}
+		if(UTF_16LE.equals(encoding)) {
+			return utf16LE;
+		}
+		int index = ((Integer)singleByteEncodings.get(encoding)).intValue();
+		return (invalid[index >> 6] & (1L << (index & 63))) == 0;
+	}
+
+	private void classify() {
+		// UTF-8 state. need is the number of continuation bytes still to come and
+		// lower and upper the range of the next one. A surrogate (ED A0..BF) is only
+		// reported once its last byte is seen.
+		boolean utf8Valid = true;
+		boolean utf8Char = false;
+		int need = 0;
+		int lower = 0x80;
+		int upper = 0xBF;
+		boolean surrogate = false;
+
+		// UTF-16 state
+		boolean beValid = true;
+		boolean leValid = true;
+		boolean beChar = false;
+		boolean leChar = false;
+		boolean beHigh = false;
+		boolean leHigh = false;
+		int previous = 0;
+
+		long [] invalid = this.invalid;
+		int words = invalid.length;
+		for(int i = 0; i < length; i++) {
+			int b = data[i] & 0xFF;
+
+			long [] invalidByte = invalidBytes[b];
+			for(int w = 0; w < words; w++) {
+				invalid[w] |= invalidByte[w];
+			}
+
+			if(utf8Valid) {
+				if(need == 0) {
+					if(b < 0x80) {
+						utf8Char = true;
+					} else if(b >= 0xC2 && b <= 0xDF) {
+						need = 1;
+					} else if(b >= 0xE0 && b <= 0xEF) {
+						need = 2;
+						lower = b == 0xE0 ? 0xA0 : 0x80;
+					} else if(b >= 0xF0 && b <= 0xF4) {
+						need = 3;
+						lower = b == 0xF0 ? 0x90 : 0x80;
+						upper = b == 0xF4 ? 0x8F : 0xBF;
+					} else {
+						utf8Valid = false;
+					}
+				} else if(b < lower || b > upper || surrogate) {
+					utf8Valid = false;
+				} else {
+					surrogate = need == 2 && b >= 0xA0 && (data[i - 1] & 0xFF) == 0xED;
+					lower = 0x80;
+					upper = 0xBF;
+					if(--need == 0) {
+						utf8Char = true;
+					}
+				}
+			}
+
+			if(b == 0) {
+				if((i & 1) == 0) {
+					evenZeros++;
+				} else {
+					oddZeros++;
+				}
+			}
+
+			if((i & 1) == 1) {
+				int be = (previous << 8) | b;
+				int le = (b << 8) | previous;
+				if(beValid) {
+					beValid = isValidUTF16(be, beHigh);
+					beHigh = be >= 0xD800 && be <= 0xDBFF;
+					beChar |= !beHigh;
+				}
+				if(leValid) {
+					leValid = isValidUTF16(le, leHigh);
+					leHigh = le >= 0xD800 && le <= 0xDBFF;
+					leChar |= !leHigh;
+				}
+			}
+			previous = b;
+		}
+		utf8 = utf8Valid && utf8Char;
+		utf16BE = beValid && beChar;
+		utf16LE = leValid && leChar;
+	}
+
+	// A reversed byte order mark is malformed, as is a surrogate that isn't part of a pair
+	private static boolean isValidUTF16(int c, boolean high) {
+		boolean low = c >= 0xDC00 && c <= 0xDFFF;
+		if(high) {
+			return low;
+		}
+		return !low && c != 0xFFFE;
+	}
+}
@@ -15,8 +15,12 @@
  */
 package eu.medsea.util;
 
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -81,6 +85,13 @@ public class EncodingGuesser {
 
 	private static Map boms = new HashMap();
 
+	// Encodings whose encoder always writes a BOM keyed to the BOM(s) the data has to start with.
+	// Data without a BOM is never in one of these encodings even if it decodes.
+	private static Map requiredBoms = new HashMap();
+
+	// The Decoders of each thread as a CharsetDecoder can only be used by one thread at a time
+	private static ThreadLocal decoders = new ThreadLocal();
+
 	/**
 	 * Initialise the supported encodings to be those supported by the JVM.
 	 * This will NOT be updated should you later add encodings dynamically to your
@@ -106,6 +117,11 @@ public class EncodingGuesser {
 		boms.put("SCSU", new byte [] {(byte)0x0E, (byte)0xFE, (byte)0xFF});
 		boms.put("BOCU-1", new byte [] {(byte)0xFB, (byte)0xEE, (byte)0x28}); // optionally followed by 0xFF
 
+		requiredBoms.put("UTF-16", new byte [][] {(byte [])boms.get("UTF-16BE"), (byte [])boms.get("UTF-16LE")});
+		requiredBoms.put("x-UTF-16LE-BOM", new byte [][] {(byte [])boms.get("UTF-16LE")});
+		requiredBoms.put("X-UTF-32BE-BOM", new byte [][] {(byte [])boms.get("UTF-32BE")});
+		requiredBoms.put("X-UTF-32LE-BOM", new byte [][] {(byte [])boms.get("UTF-32LE")});
+
 	}
 
 	/**
@@ -124,9 +140,31 @@ public class EncodingGuesser {
 	 * @return the Collection of possible encodings from the supported encodings
 	 */
 	public static Collection getPossibleEncodings(byte [] data) {
+		return getPossibleEncodings(data, data == null ? 0 : data.length);
+	}
+
+	/**
+	 * Get a Collection of all the possible encodings the first length bytes of this byte array could be used to represent.
+	 *
+	 * @param data
+	 * @param length the number of bytes at the start of data to look at
+	 * @return the Collection of possible encodings from the supported encodings
+	 */
+	public static Collection getPossibleEncodings(byte [] data, int length) {
+		return new EncodingClassifier(data, length).getPossibleEncodings();
+	}
+
+	/*
+	 * Encodings the classifier knows about are taken from its single pass over the data.
+	 * All other encodings are checked by decoding the data.
+	 */
+	static Collection getPossibleEncodings(EncodingClassifier classifier) {
+
+		byte [] data = classifier.getData();
+		int length = classifier.getLength();
 
 		Collection possibleEncodings = new TreeSet();
-		if(data == null || data.length == 0) {
+		if(data == null || length == 0) {
 			return possibleEncodings;
 		}
 
@@ -134,43 +172,38 @@ public class EncodingGuesser {
 		// the source byte array. These sequences may match valid bytes at the beginning of binary data but this shouldn't
 		// match any encodings anyway.
 
+		Decoders decoders = (Decoders)EncodingGuesser.decoders.get();
+		if(decoders == null) {
+			decoders = new Decoders();
+			EncodingGuesser.decoders.set(decoders);
+		}
+
 		String encoding = null;
 		for(Iterator it = supportedEncodings.iterator(); it.hasNext();) {
 			// This will eliminate encodings it can't possibly be from the supported encodings
-			// by converting the source byte array to a String using each encoding in turn and
-			// then getting the resultant byte array and checking it against the passed in data.
+			// by decoding the source byte array using each encoding in turn and stopping at the
+			// first byte sequence that is not valid for that encoding.
 
 			try {
-				// One problem to overcome is that the passed in data may be terminated by an
-				// incomplete character for the current encoding so we need to remove the last character
-				// then get the resulting bytes and only match this against the source byte array.
-
 				encoding = (String)it.next();
 
-				// Check if this encoding has a known bom and if so does it match the beginning of the data array ?
-				// returns either 0 or the length of the bom
-				int lengthBOM = getLengthBOM(encoding, data);
-
-				// Don't use the BOM when constructing the String
-				String test = new String(getByteArraySubArray(data, lengthBOM, data.length - lengthBOM), encoding);
-
-				// Only remove the last character if the String is more than 1 character long
-				if(test.length() > 1) {
-					// Remove last character from the test string.
-					test = test.substring(0, test.length()-2);
-				}
-
-				// This is the byte array we will compare with the passed in source array copy
-				byte [] compare = null;
-				try {
-					compare = test.getBytes(encoding);
-				}catch(UnsupportedOperationException ignore) {
+				if(!hasRequiredBOM(encoding, data, length)) {
 					continue;
 				}
 
-				// Check if source and destination byte arrays are equal
-				if(!compareByteArrays(data, lengthBOM, compare, 0, compare.length)) {
-					// dosn't match so ignore this encoding as it is unlikely to be correct
+				// Check if this encoding has a known bom and if so does it match the beginning of the data array ?
+				// returns either 0 or the length of the bom
+				int lengthBOM = getLengthBOM(encoding, data, length);
+
+				boolean valid;
+				if(lengthBOM == 0 && classifier.isClassified(encoding)) {
+					valid = classifier.isPossible(encoding);
+				} else {
+					// Don't decode the BOM
+					valid = decoders.isValid(encoding, data, lengthBOM, length - lengthBOM);
+				}
+				if(!valid) {
+					// dosn't decode so ignore this encoding as it is unlikely to be correct
 					// even if it does contain valid text data.
 					continue;
 				}
@@ -185,7 +218,8 @@ public class EncodingGuesser {
 
 				// This is a possible match.
 				possibleEncodings.add(encoding);
-			}catch(UnsupportedEncodingException uee) {
+			}catch(IllegalArgumentException iae) {
+				// Thrown for both unsupported and illegal charset names
 				log.error("The encoding [" + encoding + "] is not supported by your JVM.");
 			}catch(Exception e) {
 				// Log the error but carry on with the next encoding
@@ -281,17 +315,44 @@ public class EncodingGuesser {
 	 * @return length of BOM if the data contains a BOM else returns 0
 	 */
 	public static int getLengthBOM(String encoding, byte [] data) {
+		return getLengthBOM(encoding, data, data.length);
+	}
+
+	/**
+	 * Get the length of a BOM for this this encoding and the first length bytes of the byte array
+	 * @param encoding
+	 * @param data
+	 * @param length the number of bytes at the start of data to look at
+	 * @return length of BOM if the data contains a BOM else returns 0
+	 */
+	public static int getLengthBOM(String encoding, byte [] data, int length) {
 		if(!boms.containsKey(encoding)) {
 			return 0;
 		}
 		byte [] bom = (byte [])boms.get(encoding);
-		if(compareByteArrays(bom, 0, data, 0, bom.length)) {
+		if(bom.length <= length && compareByteArrays(bom, 0, data, 0, bom.length)) {
 			return bom.length;
 		} else {
 			return 0;
 		}
 	}
 
+	/*
+	 * False if the encoding always starts with a BOM and the data doesn't
+	 */
+	private static boolean hasRequiredBOM(String encoding, byte [] data, int length) {
+		byte [][] bomsRequired = (byte [][])requiredBoms.get(encoding);
+		if(bomsRequired == null) {
+			return true;
+		}
+		for(int i = 0; i < bomsRequired.length; i++) {
+			if(bomsRequired[i].length <= length && compareByteArrays(bomsRequired[i], 0, data, 0, bomsRequired[i].length)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * Get a sub array of this byte array starting at offset until length
 	 * @param a
@@ -351,5 +412,60 @@ public class EncodingGuesser {
 		}
 		return encodings;
 	}
+
+	/*
+	 * The CharsetDecoder(s) used by one thread to check which encodings a byte array is valid for.
+	 * Each decoder is created once and reused, and the decoded characters are never kept.
+	 */
+	private static class Decoders {
+
+		// Decoders keyed by encoding name. Encodings that can't be used are mapped to Boolean.FALSE
+		private Map decoders = new HashMap();
+
+		private CharBuffer out = CharBuffer.allocate(1024);
+
+		/*
+		 * Decode length bytes of data starting at offset and stop at the first malformed or unmappable
+		 * byte sequence. The data may be terminated by an incomplete character so bytes left over at
+		 * the end because the decoder needs more input are not an error, unless not even one
+		 * character could be decoded.
+		 */
+		boolean isValid(String encoding, byte [] data, int offset, int length) {
+			CharsetDecoder decoder = getDecoder(encoding);
+			if(decoder == null) {
+				return false;
+			}
+			decoder.reset();
+			ByteBuffer in = ByteBuffer.wrap(data, offset, length);
+			while(true) {
+				out.clear();
+				CoderResult result = decoder.decode(in, out, false);
+				if(result.isError()) {
+					return false;
+				}
+				if(result.isUnderflow()) {
+					return in.position() > offset || length == 0;
+				}
+			}
+		}
+
+		private CharsetDecoder getDecoder(String encoding) {
+			Object decoder = decoders.get(encoding);
+			if(decoder == null) {
+				Charset charset = Charset.forName(encoding);
+				// Encodings that can't encode have never been possible encodings as the data used to
+				// be checked by encoding it again.
+				if(charset.canEncode()) {
+					decoder = charset.newDecoder()
+						.onMalformedInput(CodingErrorAction.REPORT)
+						.onUnmappableCharacter(CodingErrorAction.REPORT);
+				} else {
+					decoder = Boolean.FALSE;
+				}
+				decoders.put(encoding, decoder);
+			}
+			return decoder instanceof CharsetDecoder ? (CharsetDecoder)decoder : null;
+		}
+	}
 }
 
@@ -337,4 +337,12 @@ public class MimeTypeHashSetTest extends TestCase {
 		assertTrue(d.size() == 2);
 		assertEquals(d.toString(), "application/pdf,application/x-pdf-something");
 	}
+
+	public void testAddDoesNotRegisterKnownMimeType() {
+		Collection c = new MimeTypeHashSet();
+		c.add("qrs/tuv");
+		assertTrue(c.contains("qrs/tuv"));
+		// Results are built without touching the global list of known MIME types
+		assertFalse(MimeUtil2.isMimeTypeKnown("qrs/tuv"));
+	}
 }
@@ -3,9 +3,16 @@ package eu.medsea.mimeutil;
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import eu.medsea.mimeutil.detector.MimeDetector;
 
 import eu.medsea.mimeutil.MimeException;
 import eu.medsea.mimeutil.MimeUtil2;
@@ -77,7 +84,9 @@ public class MimeUtil2Test extends TestCase {
 
 		try {
 			assertFalse(mimeUtil.getMimeTypes(new File("src/test/resources/test.bin")).equals(mimeUtil.getMimeTypes(new BufferedInputStream(new FileInputStream("src/test/resources/test.bin")))));
-			assertFalse(mimeUtil.getMimeTypes(new File(fileName)).equals(mimeUtil.getMimeTypes(new BufferedInputStream(new FileInputStream(fileName)))));
+			// Both find the same mime types for the XML file but the file name adds glob matches so the file is matched with more certainty
+			assertTrue(MimeUtil2.getMostSpecificMimeType(mimeUtil.getMimeTypes(new File(fileName))).getSpecificity()
+					> MimeUtil2.getMostSpecificMimeType(mimeUtil.getMimeTypes(new BufferedInputStream(new FileInputStream(fileName)))).getSpecificity());
 		}catch(Exception e) {
 			fail("Should not get here");
 		}
@@ -146,6 +155,19 @@ public class MimeUtil2Test extends TestCase {
 		//assertTrue(MimeUtil.getMimeTypes("src/test/resources/d-png.img").contains("image/png"));
 	}
 
+	public void testExtensionMimeTypesAreCopied() {
+		// The ExtensionMimeDetector shares the parsed mappings between calls so the
+		// specificity of one result must not leak into the next
+		int specificity = MimeUtil2.getMostSpecificMimeType(mimeUtil.getMimeTypes("abc.txt")).getSpecificity();
+		for(int i = 0; i < 3; i++) {
+			Collection mimeTypes = mimeUtil.getMimeTypes("abc.txt");
+			assertTrue(mimeTypes.contains("text/plain"));
+			assertEquals(specificity, MimeUtil2.getMostSpecificMimeType(mimeTypes).getSpecificity());
+		}
+		// The extension is lower cased if there is no exact match
+		assertEquals(mimeUtil.getMimeTypes("abc.txt"), mimeUtil.getMimeTypes("ABC.TXT"));
+	}
+
 	public void testGetMimeTypesAsByteArray() {
 		String fileName = "src/test/resources/e-svg.img";
 
@@ -254,4 +276,248 @@ public class MimeUtil2Test extends TestCase {
 		assertEquals(MimeUtil2.getSubType("chemical/x-pdb"), "x-pdb");
 		assertEquals(MimeUtil2.getSubType("vnd.ms-cab-compressed"), "*");
 	}
+
+	public void testConcurrentRegistration() throws Exception {
+		final List errors = Collections.synchronizedList(new ArrayList());
+		Thread [] threads = new Thread [4];
+		for(int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						for(int j = 0; j < 100; j++) {
+							if(mimeUtil.getMimeTypes(new File("src/test/resources/e.xml")).isEmpty()) {
+								errors.add(new AssertionError("No mime types returned for file"));
+							}
+							if(mimeUtil.getMimeTypes("src/test/resources/b-jpg.img").isEmpty()) {
+								errors.add(new AssertionError("No mime types returned for file name"));
+							}
+						}
+					}catch(Throwable t) {
+						errors.add(t);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		try {
+			for(int i = 0; i < 50; i++) {
+				mimeUtil.unregisterMimeDetector("eu.medsea.mimeutil.detector.ExtensionMimeDetector");
+				mimeUtil.registerMimeDetector("eu.medsea.mimeutil.detector.ExtensionMimeDetector");
+			}
+		}finally {
+			for(int i = 0; i < threads.length; i++) {
+				threads[i].join();
+			}
+		}
+		assertTrue(errors.toString(), errors.isEmpty());
+	}
+
+	public void testCache() throws Exception {
+		mimeUtil.setCacheSize(2);
+		try {
+			Collection first = mimeUtil.getMimeTypes(new File("src/test/resources/b-jpg.img"));
+			assertEquals(0, mimeUtil.getCacheHits());
+			assertEquals(1, mimeUtil.getCacheMisses());
+			Collection second = mimeUtil.getMimeTypes(new File("src/test/resources/b-jpg.img"));
+			assertEquals(1, mimeUtil.getCacheHits());
+			assertEquals(first, second);
+			assertEquals(MimeUtil2.getMostSpecificMimeType(first).getSpecificity(),
+					MimeUtil2.getMostSpecificMimeType(second).getSpecificity());
+
+			// File and file name lookups are cached separately
+			assertTrue(mimeUtil.getMimeTypes("src/test/resources/b-jpg.img").contains("image/jpeg"));
+			assertEquals(1, mimeUtil.getCacheHits());
+			assertEquals(2, mimeUtil.getCacheMisses());
+
+			// Least recently used entry is evicted
+			mimeUtil.getMimeTypes(new File("src/test/resources/c-gif.img"));
+			mimeUtil.getMimeTypes(new File("src/test/resources/b-jpg.img"));
+			assertEquals(1, mimeUtil.getCacheHits());
+			assertEquals(4, mimeUtil.getCacheMisses());
+
+			// Registering a MimeDetector clears the cache
+			mimeUtil.registerMimeDetector("eu.medsea.mimeutil.detector.ExtensionMimeDetector");
+			mimeUtil.unregisterMimeDetector("eu.medsea.mimeutil.detector.ExtensionMimeDetector");
+			mimeUtil.getMimeTypes(new File("src/test/resources/b-jpg.img"));
+			assertEquals(1, mimeUtil.getCacheHits());
+			assertEquals(5, mimeUtil.getCacheMisses());
+		}finally {
+			mimeUtil.setCacheSize(0);
+		}
+	}
+
+	public void testCacheDetectsChangedFile() throws Exception {
+		File file = File.createTempFile("mimeutil", ".img");
+		mimeUtil.setCacheSize(10);
+		try {
+			copy(new File("src/test/resources/c-gif.img"), file);
+			assertTrue(mimeUtil.getMimeTypes(file).contains("image/gif"));
+			assertTrue(mimeUtil.getMimeTypes(file).contains("image/gif"));
+			assertEquals(1, mimeUtil.getCacheHits());
+
+			copy(new File("src/test/resources/d-png.img"), file);
+			file.setLastModified(file.lastModified() + 10000);
+			assertTrue(mimeUtil.getMimeTypes(file).contains("image/png"));
+			assertEquals(1, mimeUtil.getCacheHits());
+			assertEquals(2, mimeUtil.getCacheMisses());
+		}finally {
+			mimeUtil.setCacheSize(0);
+			file.delete();
+		}
+	}
+
+	public void testBatch() {
+		String [] names = new File("src/test/resources").list();
+		List items = new ArrayList();
+		for(int i = 0; i < names.length; i++) {
+			items.add(new File("src/test/resources", names[i]));
+			items.add("src/test/resources/" + names[i]);
+		}
+		mimeUtil.setParallelism(3);
+		List results = mimeUtil.getMimeTypes(items);
+		assertEquals(items.size(), results.size());
+		for(int i = 0; i < items.size(); i++) {
+			Object item = items.get(i);
+			Collection expected = item instanceof File ? mimeUtil.getMimeTypes((File)item) : mimeUtil.getMimeTypes((String)item);
+			assertEquals(item.toString(), expected, results.get(i));
+		}
+
+		// Everything on the calling thread gives the same results
+		mimeUtil.setParallelism(0);
+		assertEquals(1, mimeUtil.getParallelism());
+		assertEquals(results, mimeUtil.getMimeTypes(items));
+
+		items.add(new Integer(1));
+		try {
+			mimeUtil.getMimeTypes(items);
+			fail("Should not have reached here");
+		}catch(MimeException expected) {}
+	}
+
+	public void testBatchCallback() {
+		final List items = new ArrayList();
+		for(int i = 0; i < 20; i++) {
+			items.add(i % 2 == 0 ? "src/test/resources/e.xml" : "src/test/resources/b-jpg.img");
+		}
+		items.add(new Object());
+		final Object [] results = new Object [items.size()];
+		mimeUtil.setParallelism(4);
+		mimeUtil.getMimeTypes(items.iterator(), new MimeTypesCallback() {
+			public void mimeTypes(int index, Object item, Collection mimeTypes) {
+				assertSame(items.get(index), item);
+				results[index] = mimeTypes;
+			}
+			public void error(int index, Object item, MimeException e) {
+				results[index] = e;
+			}
+		});
+		for(int i = 0; i < 20; i++) {
+			assertTrue(((Collection)results[i]).contains(i % 2 == 0 ? "application/xml" : "image/jpeg"));
+		}
+		assertTrue(results[20] instanceof MimeException);
+	}
+
+	public void testBatchFailuresAreRethrown() {
+		final Iterator failing = new Iterator() {
+			private int count;
+			public boolean hasNext() {
+				return true;
+			}
+			public Object next() {
+				if(++count > 5) {
+					throw new IllegalStateException("No more items");
+				}
+				return "src/test/resources/e.xml";
+			}
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+		final MimeTypesCallback ignore = new MimeTypesCallback() {
+			public void mimeTypes(int index, Object item, Collection mimeTypes) {
+			}
+			public void error(int index, Object item, MimeException e) {
+			}
+		};
+		mimeUtil.setParallelism(3);
+		try {
+			mimeUtil.getMimeTypes(failing, ignore);
+			fail("Should not have reached here");
+		}catch(MimeException expected) {
+			assertTrue(expected.getCause() instanceof IllegalStateException);
+		}
+
+		List items = new ArrayList();
+		for(int i = 0; i < 10; i++) {
+			items.add("src/test/resources/e.xml");
+		}
+		for(int parallelism = 1; parallelism <= 3; parallelism += 2) {
+			mimeUtil.setParallelism(parallelism);
+			try {
+				mimeUtil.getMimeTypes(items.iterator(), new MimeTypesCallback() {
+					public void mimeTypes(int index, Object item, Collection mimeTypes) {
+						throw new Error("Callback failed");
+					}
+					public void error(int index, Object item, MimeException e) {
+					}
+				});
+				fail("Should not have reached here");
+			}catch(MimeException expected) {
+				assertTrue(expected.getCause() instanceof Error);
+			}
+		}
+	}
+
+	public void testUnsupportedInputsAreSkipped() throws Exception {
+		mimeUtil.registerMimeDetector(FileNameOnlyMimeDetector.class.getName());
+		try {
+			assertTrue(mimeUtil.getMimeTypes("src/test/resources/e.xml").contains("abc/def"));
+			assertFalse(mimeUtil.getMimeTypes(new File("src/test/resources/e.xml")).contains("abc/def"));
+			assertFalse(mimeUtil.getMimeTypes(new byte [] {'<', '?', 'x', 'm', 'l'}).contains("abc/def"));
+			assertFalse(mimeUtil.getMimeTypes(new BufferedInputStream(new FileInputStream("src/test/resources/e.xml"))).contains("abc/def"));
+		}finally {
+			mimeUtil.unregisterMimeDetector(FileNameOnlyMimeDetector.class.getName());
+		}
+	}
+
+	public static class FileNameOnlyMimeDetector extends MimeDetector {
+		public String getDescription() {
+			return "Only supports file names";
+		}
+		public int getSupportedInputs() {
+			return INPUT_FILE_NAME;
+		}
+		protected Collection getMimeTypesFileName(String fileName) {
+			Collection mimeTypes = new ArrayList();
+			mimeTypes.add(new MimeType("abc/def"));
+			return mimeTypes;
+		}
+		protected Collection getMimeTypesFile(File file) {
+			throw new AssertionError("Should not be called for a File");
+		}
+		protected Collection getMimeTypesURL(URL url) {
+			throw new AssertionError("Should not be called for a URL");
+		}
+		protected Collection getMimeTypesInputStream(InputStream in) {
+			throw new AssertionError("Should not be called for an InputStream");
+		}
+		protected Collection getMimeTypesByteArray(byte [] data) {
+			throw new AssertionError("Should not be called for a byte array");
+		}
+	}
+
+	private static void copy(File from, File to) throws Exception {
+		InputStream in = new FileInputStream(from);
+		FileOutputStream out = new FileOutputStream(to);
+		try {
+			byte [] buffer = new byte [1024];
+			int len;
+			while((len = in.read(buffer)) != -1) {
+				out.write(buffer, 0, len);
+			}
+		}finally {
+			in.close();
+			out.close();
+		}
+	}
 }
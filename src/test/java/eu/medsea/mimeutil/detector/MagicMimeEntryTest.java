@@ -0,0 +1,67 @@
+package eu.medsea.mimeutil.detector;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+public class MagicMimeEntryTest extends TestCase {
+
+	public void testMask() throws Exception {
+		String rule = "0	belong&0xffff0000	0xffd80000	image/jpeg";
+		assertTrue(matches(rule, new byte [] {(byte)0xFF, (byte)0xD8, 0x12, 0x34}));
+		assertFalse(matches(rule, new byte [] {(byte)0xFF, (byte)0xD9, 0x00, 0x00}));
+
+		rule = "0	leshort&0x00ff	0x0034	application/x-test";
+		assertTrue(matches(rule, new byte [] {0x34, 0x12}));
+		assertFalse(matches(rule, new byte [] {0x12, 0x34}));
+
+		rule = "0	beshort&0x0ff0	0x0340	application/x-test";
+		assertTrue(matches(rule, new byte [] {0x13, 0x4F}));
+		assertTrue(matches(rule, new byte [] {(byte)0xF3, 0x40}));
+		assertFalse(matches(rule, new byte [] {0x13, 0x5F}));
+	}
+
+	public void testStringOperators() throws Exception {
+		String rule = "0	string	GIF8	image/gif";
+		assertTrue(matches(rule, "GIF89a".getBytes("ISO-8859-1")));
+		assertFalse(matches(rule, "GIF7".getBytes("ISO-8859-1")));
+		// Too short to compare
+		assertFalse(matches(rule, "GIF".getBytes("ISO-8859-1")));
+
+		rule = "0	string	>GIF	text/x-greater";
+		assertTrue(matches(rule, "GIG".getBytes("ISO-8859-1")));
+		assertFalse(matches(rule, "GIF".getBytes("ISO-8859-1")));
+		assertFalse(matches(rule, "GIE".getBytes("ISO-8859-1")));
+
+		rule = "0	string	<GIF	text/x-less";
+		assertTrue(matches(rule, "GIE".getBytes("ISO-8859-1")));
+		assertFalse(matches(rule, "GIF".getBytes("ISO-8859-1")));
+
+		rule = "2	string	GIF	image/gif";
+		assertTrue(matches(rule, "..GIF".getBytes("ISO-8859-1")));
+		assertFalse(matches(rule, "GIF..".getBytes("ISO-8859-1")));
+	}
+
+	// Strings are compared as ISO-8859-1 characters whatever the default encoding of the JVM is
+	public void testStringBytesAreISO88591() throws Exception {
+		String rule = "0	string>10<	\\351t\\351	text/x-between";
+		// The between test looks at the next 10 bytes so needs at least that many
+		assertTrue(matches(rule, new byte [] {'a', 'b', (byte)0xE9, 't', (byte)0xE9, ' ', ' ', ' ', ' ', ' '}));
+		assertFalse(matches(rule, "ab\u00e9t\u00e9     ".getBytes("UTF-8")));
+		assertFalse(matches(rule, new byte [] {'a', 'b', (byte)0xE9, 't', (byte)0xE9}));
+
+		rule = "0	string	>\\177	text/x-greater";
+		assertTrue(matches(rule, new byte [] {(byte)0xE9}));
+		assertFalse(matches(rule, new byte [] {'a'}));
+
+		rule = "0	string	<\\200	text/x-less";
+		assertTrue(matches(rule, new byte [] {'a'}));
+		assertFalse(matches(rule, new byte [] {(byte)0xE9}));
+	}
+
+	private boolean matches(String rule, byte [] data) throws Exception {
+		ArrayList lines = new ArrayList();
+		lines.add(rule);
+		return new MagicMimeEntry(lines).getMatch(data) != null;
+	}
+}
@@ -23,6 +23,7 @@ public class MagicMimeMimeDetectorTest extends TestCase {
 
 	protected void tearDown() throws Exception {
 		super.tearDown();
+		mimeUtil.unregisterMimeDetector("eu.medsea.mimeutil.detector.MagicMimeMimeDetector");
 		mimeUtil = null;
 	}
 
@@ -46,6 +47,55 @@ public class MagicMimeMimeDetectorTest extends TestCase {
 		}
 	}
 
+	public void testGetMimeTypesInputStreamMarksOnce() throws Exception {
+		final int [] marks = new int [1];
+		InputStream in = new BufferedInputStream(new FileInputStream("src/test/resources/afpfile.afp")) {
+			public synchronized void mark(int readlimit) {
+				marks[0]++;
+				super.mark(readlimit);
+			}
+		};
+		try {
+			MimeDetector md = mimeUtil.getMimeDetector("eu.medsea.mimeutil.detector.MagicMimeMimeDetector");
+			assertEquals("[application/vnd.ibm.modcap]", md.getMimeTypes(in).toString());
+			assertEquals(1, marks[0]);
+		}finally {
+			in.close();
+		}
+	}
+
+	public void testRuleSetIsShared() {
+		MagicMimeMimeDetector md = (MagicMimeMimeDetector)mimeUtil.getMimeDetector("eu.medsea.mimeutil.detector.MagicMimeMimeDetector");
+		MagicMimeRuleSet rules = md.getRuleSet();
+		int size = rules.size();
+
+		MimeUtil2 other = new MimeUtil2();
+		MagicMimeMimeDetector otherMd = (MagicMimeMimeDetector)other.registerMimeDetector("eu.medsea.mimeutil.detector.MagicMimeMimeDetector");
+		assertSame(rules, otherMd.getRuleSet());
+		assertEquals(size, otherMd.getRuleSet().size());
+
+		other.unregisterMimeDetector(otherMd);
+		// Still in use by the detector registered in setUp()
+		MagicMimeMimeDetector third = new MagicMimeMimeDetector();
+		assertSame(rules, third.getRuleSet());
+		third.delete();
+	}
+
+	public void testDeleteTwice() {
+		MagicMimeMimeDetector md = (MagicMimeMimeDetector)mimeUtil.getMimeDetector("eu.medsea.mimeutil.detector.MagicMimeMimeDetector");
+		MagicMimeRuleSet rules = md.getRuleSet();
+
+		MagicMimeMimeDetector other = new MagicMimeMimeDetector();
+		other.delete();
+		// Must not drop the reference of the detector registered in setUp()
+		other.delete();
+		assertTrue(rules.references > 0);
+
+		MagicMimeMimeDetector third = new MagicMimeMimeDetector();
+		assertSame(rules, third.getRuleSet());
+		third.delete();
+	}
+
 	public void testGetMimeTypesByteArray() {
 		try {
 			InputStream is = new FileInputStream("src/test/resources/afpfile.afp");
@@ -0,0 +1,288 @@
+package eu.medsea.mimeutil.detector;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Builds small version 1.1 mime.cache files for the tests. The lists are sorted as the
+ * format requires, magic entries are kept in the order they are added which must be by
+ * descending priority.
+ */
+class MimeCacheBuilder {
+
+	static final int WEIGHT = 50;
+
+	private final Map aliases = new TreeMap();
+	private final Map parents = new TreeMap();
+	private final List literals = new ArrayList();
+	private final Node suffixes = new Node();
+	private final List globs = new ArrayList();
+	private final List magic = new ArrayList();
+	private final Map icons = new TreeMap();
+
+	private ByteBuffer cache;
+	private int end;
+
+	MimeCacheBuilder alias(String alias, String mimeType) {
+		aliases.put(alias, mimeType);
+		return this;
+	}
+
+	MimeCacheBuilder parent(String mimeType, String parent) {
+		List list = (List)parents.get(mimeType);
+		if(list == null) {
+			list = new ArrayList();
+			parents.put(mimeType, list);
+		}
+		list.add(parent);
+		return this;
+	}
+
+	MimeCacheBuilder literal(String literal, String mimeType) {
+		literals.add(new String [] {literal, mimeType});
+		return this;
+	}
+
+	// A glob of the form *.suffix that goes into the reverse suffix tree
+	MimeCacheBuilder suffix(String suffix, String mimeType) {
+		Node node = suffixes;
+		for(int i = suffix.length() - 1; i >= 0; i--) {
+			Character character = new Character(suffix.charAt(i));
+			Node child = (Node)node.children.get(character);
+			if(child == null) {
+				child = new Node();
+				node.children.put(character, child);
+			}
+			node = child;
+		}
+		node.mimeTypes.add(mimeType);
+		return this;
+	}
+
+	MimeCacheBuilder glob(String glob, String mimeType) {
+		globs.add(new String [] {glob, mimeType});
+		return this;
+	}
+
+	MimeCacheBuilder magic(int priority, String mimeType, Matchlet [] matchlets) {
+		magic.add(new Object [] {new Integer(priority), mimeType, matchlets});
+		return this;
+	}
+
+	// A single matchlet looking for value at offset
+	MimeCacheBuilder magic(int priority, String mimeType, int offset, String value) {
+		return magic(priority, mimeType, new Matchlet [] {new Matchlet(offset, 1, value, null)});
+	}
+
+	MimeCacheBuilder icon(String mimeType, String icon) {
+		icons.put(mimeType, icon);
+		return this;
+	}
+
+	ByteBuffer build() {
+		cache = ByteBuffer.allocate(64 * 1024);
+		// The header comes first
+		end = 40;
+		cache.putShort(0, (short)1);
+		cache.putShort(2, (short)1);
+
+		cache.putInt(4, writePairs(aliases));
+
+		int listOffset = alloc(4 + 8 * parents.size());
+		cache.putInt(8, listOffset);
+		cache.putInt(listOffset, parents.size());
+		int entry = listOffset + 4;
+		for(Iterator it = parents.entrySet().iterator(); it.hasNext(); entry += 8) {
+			Map.Entry mapEntry = (Map.Entry)it.next();
+			List list = (List)mapEntry.getValue();
+			int parentsOffset = alloc(4 + 4 * list.size());
+			cache.putInt(parentsOffset, list.size());
+			for(int i = 0; i < list.size(); i++) {
+				cache.putInt(parentsOffset + 4 + (4 * i), string((String)list.get(i)));
+			}
+			cache.putInt(entry, string((String)mapEntry.getKey()));
+			cache.putInt(entry + 4, parentsOffset);
+		}
+
+		TreeMap sortedLiterals = new TreeMap();
+		for(Iterator it = literals.iterator(); it.hasNext();) {
+			String [] literal = (String [])it.next();
+			sortedLiterals.put(literal[0], literal);
+		}
+		cache.putInt(12, writeGlobs(new ArrayList(sortedLiterals.values())));
+
+		listOffset = alloc(8);
+		cache.putInt(16, listOffset);
+		cache.putInt(listOffset, suffixes.size());
+		cache.putInt(listOffset + 4, writeNode(suffixes));
+
+		cache.putInt(20, writeGlobs(globs));
+
+		listOffset = alloc(12);
+		cache.putInt(24, listOffset);
+		int entries = alloc(16 * magic.size());
+		cache.putInt(listOffset, magic.size());
+		cache.putInt(listOffset + 8, entries);
+		int maxExtents = 0;
+		for(int i = 0; i < magic.size(); i++) {
+			Object [] magicEntry = (Object [])magic.get(i);
+			Matchlet [] matchlets = (Matchlet [])magicEntry[2];
+			cache.putInt(entries + (16 * i), ((Integer)magicEntry[0]).intValue());
+			cache.putInt(entries + (16 * i) + 4, string((String)magicEntry[1]));
+			cache.putInt(entries + (16 * i) + 8, matchlets.length);
+			cache.putInt(entries + (16 * i) + 12, writeMatchlets(matchlets));
+			for(int j = 0; j < matchlets.length; j++) {
+				maxExtents = Math.max(maxExtents, matchlets[j].getExtent());
+			}
+		}
+		cache.putInt(listOffset + 4, maxExtents);
+
+		// No namespaces or generic icons
+		cache.putInt(28, alloc(4));
+		cache.putInt(32, writePairs(icons));
+		cache.putInt(36, alloc(4));
+
+		cache.limit(end);
+		return cache.slice();
+	}
+
+	File write() throws Exception {
+		ByteBuffer content = build();
+		byte [] data = new byte [content.remaining()];
+		content.get(data);
+		File file = File.createTempFile("mime", ".cache");
+		file.deleteOnExit();
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		}finally {
+			out.close();
+		}
+		return file;
+	}
+
+	// Reserve zeroed space at the end, kept 4 byte aligned
+	private int alloc(int length) {
+		int offset = end;
+		end += (length + 3) & ~3;
+		return offset;
+	}
+
+	private int bytes(byte [] bytes) {
+		int offset = alloc(bytes.length);
+		for(int i = 0; i < bytes.length; i++) {
+			cache.put(offset + i, bytes[i]);
+		}
+		return offset;
+	}
+
+	private int string(String s) {
+		int offset = alloc(s.length() + 1);
+		for(int i = 0; i < s.length(); i++) {
+			cache.put(offset + i, (byte)s.charAt(i));
+		}
+		return offset;
+	}
+
+	private int writePairs(Map pairs) {
+		int listOffset = alloc(4 + 8 * pairs.size());
+		cache.putInt(listOffset, pairs.size());
+		int entry = listOffset + 4;
+		for(Iterator it = pairs.entrySet().iterator(); it.hasNext(); entry += 8) {
+			Map.Entry mapEntry = (Map.Entry)it.next();
+			cache.putInt(entry, string((String)mapEntry.getKey()));
+			cache.putInt(entry + 4, string((String)mapEntry.getValue()));
+		}
+		return listOffset;
+	}
+
+	private int writeGlobs(List list) {
+		int listOffset = alloc(4 + 12 * list.size());
+		cache.putInt(listOffset, list.size());
+		for(int i = 0; i < list.size(); i++) {
+			String [] glob = (String [])list.get(i);
+			cache.putInt(listOffset + 4 + (12 * i), string(glob[0]));
+			cache.putInt(listOffset + 8 + (12 * i), string(glob[1]));
+			cache.putInt(listOffset + 12 + (12 * i), WEIGHT);
+		}
+		return listOffset;
+	}
+
+	// The leaves have the character 0 so they come before the children
+	private int writeNode(Node node) {
+		int offset = alloc(12 * node.size());
+		int entry = offset;
+		for(Iterator it = node.mimeTypes.iterator(); it.hasNext(); entry += 12) {
+			cache.putInt(entry + 4, string((String)it.next()));
+			cache.putInt(entry + 8, WEIGHT);
+		}
+		for(Iterator it = node.children.entrySet().iterator(); it.hasNext(); entry += 12) {
+			Map.Entry mapEntry = (Map.Entry)it.next();
+			Node child = (Node)mapEntry.getValue();
+			cache.putInt(entry, ((Character)mapEntry.getKey()).charValue());
+			cache.putInt(entry + 4, child.size());
+			cache.putInt(entry + 8, writeNode(child));
+		}
+		return offset;
+	}
+
+	private int writeMatchlets(Matchlet [] matchlets) {
+		if(matchlets == null || matchlets.length == 0) {
+			return 0;
+		}
+		int offset = alloc(32 * matchlets.length);
+		for(int i = 0; i < matchlets.length; i++) {
+			Matchlet matchlet = matchlets[i];
+			int entry = offset + (32 * i);
+			cache.putInt(entry, matchlet.rangeStart);
+			cache.putInt(entry + 4, matchlet.rangeLength);
+			cache.putInt(entry + 8, 1);
+			cache.putInt(entry + 12, matchlet.value.length);
+			cache.putInt(entry + 16, bytes(matchlet.value));
+			cache.putInt(entry + 24, matchlet.children == null ? 0 : matchlet.children.length);
+			cache.putInt(entry + 28, writeMatchlets(matchlet.children));
+		}
+		return offset;
+	}
+
+	static class Matchlet {
+		final int rangeStart;
+		final int rangeLength;
+		final byte [] value;
+		final Matchlet [] children;
+
+		Matchlet(int rangeStart, int rangeLength, String value, Matchlet [] children) {
+			this.rangeStart = rangeStart;
+			this.rangeLength = rangeLength;
+			this.value = new byte [value.length()];
+			for(int i = 0; i < value.length(); i++) {
+				this.value[i] = (byte)value.charAt(i);
+			}
+			this.children = children;
+		}
+
+		int getExtent() {
+			int extent = rangeStart + rangeLength - 1 + value.length;
+			for(int i = 0; children != null && i < children.length; i++) {
+				extent = Math.max(extent, children[i].getExtent());
+			}
+			return extent;
+		}
+	}
+
+	private static class Node {
+		final List mimeTypes = new ArrayList();
+		final Map children = new TreeMap();
+
+		int size() {
+			return mimeTypes.size() + children.size();
+		}
+	}
+}
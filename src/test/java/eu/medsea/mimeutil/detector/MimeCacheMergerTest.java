@@ -0,0 +1,170 @@
+package eu.medsea.mimeutil.detector;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class MimeCacheMergerTest extends TestCase {
+
+	private static final String [] LITERALS = {"AUTHORS", "CMakeLists.txt", "COPYING", "ChangeLog", "INSTALL",
+			"Makefile", "NEWS", "README", "RMAIL", "TODO", "core", "gmon.out", "makefile", "meson.build", "sources.list"};
+
+	public void testMergeDifferentCaches() throws Exception {
+		ByteBuffer first = new MimeCacheBuilder()
+				.alias("application/x-old", "application/x-first")
+				.parent("text/x-shared", "text/plain")
+				.literal("FIRST", "application/x-first")
+				.suffix(".first", "application/x-first")
+				.glob("*.first", "application/x-first")
+				.glob("*.shared", "text/x-shared")
+				.magic(50, "application/x-first", 0, "FIRST")
+				.icon("text/x-shared", "first-icon")
+				.build();
+		ByteBuffer second = new MimeCacheBuilder()
+				.alias("application/x-old", "application/x-second")
+				.parent("text/x-shared", "application/x-base")
+				.literal("SECOND", "application/x-second")
+				.suffix(".second", "application/x-second")
+				.suffix(".old", "application/x-old")
+				.glob("*.second", "application/x-second")
+				.glob("*.old", "application/x-old")
+				.magic(50, "application/x-second", 0, "SECOND")
+				.icon("text/x-shared", "second-icon")
+				.build();
+
+		ByteBuffer merged = MimeCacheMerger.merge(new ByteBuffer [] {first, second});
+
+		// Literals, suffixes, globs and magic of both caches are kept
+		List literals = getPairs(merged, merged.getInt(12), 12);
+		assertEquals(2, literals.size());
+		assertTrue(literals.contains("FIRST=application/x-first"));
+		assertTrue(literals.contains("SECOND=application/x-second"));
+		List suffixes = getSuffixes(merged);
+		assertEquals(3, suffixes.size());
+		assertTrue(suffixes.contains("tsrif.=application/x-first"));
+		assertTrue(suffixes.contains("dnoces.=application/x-second"));
+		List globs = getPairs(merged, merged.getInt(20), 12);
+		assertTrue(globs.contains("*.first=application/x-first"));
+		assertTrue(globs.contains("*.shared=text/x-shared"));
+		assertTrue(globs.contains("*.second=application/x-second"));
+		List magic = getMagicMimeTypes(merged);
+		assertTrue(magic.contains("application/x-first"));
+		assertTrue(magic.contains("application/x-second"));
+
+		// The first cache wins for the alias, which is also used to resolve the mime types of the other cache
+		List aliases = getPairs(merged, merged.getInt(4), 8);
+		assertEquals(1, aliases.size());
+		assertEquals("application/x-old=application/x-first", aliases.get(0));
+		assertTrue(globs.contains("*.old=application/x-first"));
+		assertTrue(suffixes.contains("dlo.=application/x-first"));
+
+		// The first cache wins for the icon
+		List icons = getPairs(merged, merged.getInt(32), 8);
+		assertEquals(1, icons.size());
+		assertEquals("text/x-shared=first-icon", icons.get(0));
+
+		// The parents of both caches are kept
+		int listOffset = merged.getInt(8);
+		assertEquals(1, merged.getInt(listOffset));
+		assertEquals("text/x-shared", getString(merged, merged.getInt(listOffset + 4)));
+		int parentsOffset = merged.getInt(listOffset + 8);
+		assertEquals(2, merged.getInt(parentsOffset));
+		assertEquals("text/plain", getString(merged, merged.getInt(parentsOffset + 4)));
+		assertEquals("application/x-base", getString(merged, merged.getInt(parentsOffset + 8)));
+	}
+
+	public void testLiteralOfFirstCacheWins() throws Exception {
+		MimeCacheBuilder override = new MimeCacheBuilder();
+		MimeCacheBuilder bundled = new MimeCacheBuilder();
+		for(int i = 0; i < LITERALS.length; i++) {
+			override.literal(LITERALS[i], "application/x-override");
+			bundled.literal(LITERALS[i], "text/x-bundled");
+		}
+		File overrideFile = override.write();
+		File bundledFile = bundled.write();
+
+		// Only the literals of the cache with the highest precedence are kept
+		ByteBuffer merged = MimeCacheMerger.merge(new ByteBuffer [] {override.build(), bundled.build()});
+		List literals = getPairs(merged, merged.getInt(12), 12);
+		assertEquals(LITERALS.length, literals.size());
+		for(int i = 0; i < LITERALS.length; i++) {
+			assertTrue(LITERALS[i], literals.contains(LITERALS[i] + "=application/x-override"));
+		}
+
+		// and looked up whatever their position in the list
+		assertLiterals(new File [] {overrideFile, bundledFile}, "application/x-override");
+		assertLiterals(new File [] {bundledFile, overrideFile}, "text/x-bundled");
+	}
+
+	private static void assertLiterals(File [] cacheFiles, String mimeType) {
+		String [] paths = new String [cacheFiles.length];
+		for(int i = 0; i < cacheFiles.length; i++) {
+			paths[i] = cacheFiles[i].getAbsolutePath();
+		}
+		OpendesktopMimeDetector mimeDetector = new OpendesktopMimeDetector(paths);
+		try {
+			for(int i = 0; i < LITERALS.length; i++) {
+				Collection mimeTypes = mimeDetector.getMimeTypesFileName(LITERALS[i]);
+				assertEquals(LITERALS[i], 1, mimeTypes.size());
+				assertEquals(LITERALS[i], mimeType, mimeTypes.iterator().next().toString());
+			}
+		}finally {
+			mimeDetector.delete();
+		}
+	}
+
+	// "key=value" for each entry of a list of string pairs
+	private static List getPairs(ByteBuffer cache, int listOffset, int entrySize) {
+		List pairs = new ArrayList();
+		int numEntries = cache.getInt(listOffset);
+		for(int i = 0; i < numEntries; i++) {
+			pairs.add(getString(cache, cache.getInt(listOffset + 4 + (entrySize * i))) + "="
+					+ getString(cache, cache.getInt(listOffset + 8 + (entrySize * i))));
+		}
+		return pairs;
+	}
+
+	private static List getMagicMimeTypes(ByteBuffer cache) {
+		List mimeTypes = new ArrayList();
+		int listOffset = cache.getInt(24);
+		int numEntries = cache.getInt(listOffset);
+		int offset = cache.getInt(listOffset + 8);
+		for(int i = 0; i < numEntries; i++) {
+			mimeTypes.add(getString(cache, cache.getInt(offset + (16 * i) + 4)));
+		}
+		return mimeTypes;
+	}
+
+	private static String getString(ByteBuffer cache, int offset) {
+		StringBuffer buf = new StringBuffer();
+		char c;
+		while((c = (char)cache.get(offset++)) != 0) {
+			buf.append(c);
+		}
+		return buf.toString();
+	}
+
+	// "pattern=mime type" for each leaf of the reverse suffix tree, the pattern is the path to the leaf
+	private static List getSuffixes(ByteBuffer cache) {
+		List suffixes = new ArrayList();
+		int listOffset = cache.getInt(16);
+		addSuffixes(cache, cache.getInt(listOffset), cache.getInt(listOffset + 4), "", suffixes);
+		return suffixes;
+	}
+
+	private static void addSuffixes(ByteBuffer cache, int numEntries, int offset, String path, List suffixes) {
+		for(int i = 0; i < numEntries; i++) {
+			int character = cache.getInt(offset + (12 * i));
+			if(character == 0) {
+				suffixes.add(path + "=" + getString(cache, cache.getInt(offset + (12 * i) + 4)));
+			} else {
+				addSuffixes(cache, cache.getInt(offset + (12 * i) + 4), cache.getInt(offset + (12 * i) + 8),
+						path + (char)character, suffixes);
+			}
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package eu.medsea.mimeutil.detector;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+public class MimeDetectionContextTest extends TestCase {
+
+	public void testHeaderIsZeroPadded() {
+		MimeDetectionContext context = new MimeDetectionContext(new File("src/test/resources/test.bin"), 16);
+		byte [] header = context.getHeader();
+		assertEquals(16, header.length);
+		assertEquals(5, context.getLength());
+		assertEquals('Z', header[0]);
+		for(int i = 5; i < header.length; i++) {
+			assertEquals(0, header[i]);
+		}
+		// Header is only read once
+		assertSame(header, context.getHeader());
+	}
+
+	public void testHeaderIsTruncated() {
+		MimeDetectionContext context = new MimeDetectionContext(new File("src/test/resources/a.html"), 4);
+		assertEquals(4, context.getHeader().length);
+		assertEquals(4, context.getLength());
+	}
+
+	public void testMissingFile() {
+		MimeDetectionContext context = new MimeDetectionContext(new File("src/test/resources/does.not.exist"), 16);
+		assertNull(context.getHeader());
+		assertEquals(0, context.getLength());
+	}
+
+	public void testNoHeaderRequired() {
+		MimeDetectionContext context = new MimeDetectionContext(new File("src/test/resources/test.bin"), 0);
+		assertNull(context.getHeader());
+	}
+}
@@ -0,0 +1,98 @@
+package eu.medsea.mimeutil.detector;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class OffsetByteIndexTest extends TestCase {
+
+	private static final String [] RULES = {
+		"0	string	PK\\003\\004	application/zip",
+		"0	string	\\<?xml	text/xml",
+		"0	string	\\<html	text/html",
+		"0	string	\\<HTML	text/html",
+		"0	belong	0xffd8ffe0	image/jpeg",
+		"0	beshort	0xffd8	image/jpeg",
+		"0	string	GIF8	image/gif",
+		"0	string	\\211PNG	image/png",
+		"0	leshort	0x9d1f	application/x-compress",
+		"0	lelong	0x04034b50	application/zip",
+		"0	byte	0x5a	application/x-z",
+		"0	belong&0xffff0000	0xffd80000	image/jpeg",
+		"0	byte	>0x20	text/x-greater",
+		"0	string	>\\0	text/x-any",
+		"1	string>10<	xml	text/x-between",
+		"257	string	ustar	application/x-tar",
+		"-1	byte	0x00	application/x-negative",
+	};
+
+	public void testCandidatesAreInRuleOrder() {
+		OffsetByteIndex index = new OffsetByteIndex(new int [] {0, 0, 4, 0, 2}, new int [] {'P', -1, 'A', 'P', 7});
+		assertEquals(5, index.size());
+
+		byte [] data = "PK..ABC".getBytes();
+		assertTrue(Arrays.equals(new int [] {0, 1, 2, 3}, index.getCandidates(data, data.length)));
+		// Offsets beyond the valid data are not looked at
+		assertTrue(Arrays.equals(new int [] {0, 1, 3}, index.getCandidates(data, 3)));
+
+		data = "XYZ".getBytes();
+		assertTrue(Arrays.equals(new int [] {1}, index.getCandidates(data, data.length)));
+	}
+
+	public void testSameResultsAsLinearScan() throws Exception {
+		List entries = new ArrayList();
+		for(int i = 0; i < RULES.length; i++) {
+			ArrayList lines = new ArrayList();
+			lines.add(RULES[i]);
+			entries.add(new MagicMimeEntry(lines));
+		}
+		OffsetByteIndex index = MagicMimeMimeDetector.createIndex(entries);
+
+		File [] files = new File("src/test/resources").listFiles();
+		for(int i = 0; i < files.length; i++) {
+			if(!files[i].isFile()) {
+				continue;
+			}
+			byte [] data = read(files[i], 512);
+			List linear = new ArrayList();
+			for(int j = 0; j < entries.size(); j++) {
+				if(((MagicMimeEntry)entries.get(j)).getMatch(data) != null) {
+					linear.add(new Integer(j));
+				}
+			}
+			List indexed = new ArrayList();
+			int [] candidates = index.getCandidates(data, data.length);
+			for(int j = 0; j < candidates.length; j++) {
+				if(((MagicMimeEntry)entries.get(candidates[j])).getMatch(data) != null) {
+					indexed.add(new Integer(candidates[j]));
+				}
+			}
+			assertEquals(files[i].getName(), linear, indexed);
+		}
+	}
+
+	private byte [] read(File file, int len) throws Exception {
+		InputStream in = new FileInputStream(file);
+		try {
+			byte [] data = new byte [len];
+			int offset = 0;
+			while(offset < len) {
+				int read = in.read(data, offset, len - offset);
+				if(read < 0) {
+					break;
+				}
+				offset += read;
+			}
+			byte [] copy = new byte [offset];
+			System.arraycopy(data, 0, copy, 0, offset);
+			return copy;
+		}finally {
+			in.close();
+		}
+	}
+}
@@ -1,9 +1,19 @@
 package eu.medsea.mimeutil.detector;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
+import eu.medsea.mimeutil.MimeType;
 import eu.medsea.mimeutil.MimeUtil2;
 
 import eu.medsea.util.EncodingGuesser;
@@ -50,6 +60,33 @@ public class OpendesktopMimeDetectorTest extends TestCase {
 		assertEquals("application/x-java-archive", mimeUtil.getMimeTypes(new File("e.1.3.jar")).toString());
 	}
 
+	public void testGetMimeTypesFileNameSuffixCase() {
+		OpendesktopMimeDetector mimeDetector = new OpendesktopMimeDetector("src/main/resources/mime.cache");
+		try {
+			// Mixed case names fall back to the case insensitive suffix
+			assertEquals("[image/png]", mimeDetector.getMimeTypesFileName("x.Png").toString());
+			assertEquals("[image/png]", mimeDetector.getMimeTypesFileName("X.pNg").toString());
+			assertEquals("[image/png]", mimeDetector.getMimeTypesFileName("x.PNG").toString());
+			assertEquals("[text/plain]", mimeDetector.getMimeTypesFileName("abc.TXT").toString());
+			assertEquals("[application/x-compressed-tar]", mimeDetector.getMimeTypesFileName("x.tar.GZ").toString());
+			assertEquals("[]", mimeDetector.getMimeTypesFileName("x.My").toString());
+
+			// A suffix that is not lower case in the cache is matched case sensitively first
+			assertEquals("[text/x-c++src]", mimeDetector.getMimeTypesFileName("a.C").toString());
+			assertEquals("[text/x-csrc]", mimeDetector.getMimeTypesFileName("a.c").toString());
+			assertEquals("[application/x-compress]", mimeDetector.getMimeTypesFileName("a.Z").toString());
+
+			// The lower case of \u0130 is two characters, the rest of the name must still line up
+			assertEquals("[image/png]", mimeDetector.getMimeTypesFileName("\u0130con.Png").toString());
+
+			// The first character is never part of the suffix
+			assertEquals("[]", mimeDetector.getMimeTypesFileName("png").toString());
+			assertEquals("[]", mimeDetector.getMimeTypesFileName("").toString());
+		}finally {
+			mimeDetector.delete();
+		}
+	}
+
 	public void testGetMimeTypesFile() {
 		// Globbing won't work so lets try magic sniffing
 		assertTrue(mimeUtil.getMimeTypes(new File("src/test/resources/e[xml]")).contains("application/xml"));
@@ -66,6 +103,132 @@ public class OpendesktopMimeDetectorTest extends TestCase {
 
 	}
 
+	public void testGetMimeTypesInputStreamIgnoresEarlierContent() throws Exception {
+		MimeDetector mimeDetector = mimeUtil.getMimeDetector("eu.medsea.mimeutil.detector.OpendesktopMimeDetector");
+		InputStream in = new BufferedInputStream(new FileInputStream("src/test/resources/d-png.img"));
+		try {
+			assertTrue(mimeDetector.getMimeTypesInputStream(in).contains(new MimeType("image/png")));
+		}finally {
+			in.close();
+		}
+		// The buffer the header of the png was read into must not leak into the next detection
+		assertEquals(mimeDetector.getMimeTypesByteArray(new byte [0]),
+				mimeDetector.getMimeTypesInputStream(new ByteArrayInputStream(new byte [0])));
+		assertFalse(mimeDetector.getMimeTypesInputStream(new ByteArrayInputStream(new byte [] {(byte)0x89})).contains(new MimeType("image/png")));
+	}
+
+	public void testShortFileMatchesStreamAndByteArray() throws Exception {
+		// Shorter than the magic extents so only the bytes actually read may be matched
+		byte [] data = new byte [] {0, 0, 1, 0};
+		File file = File.createTempFile("short", null);
+		try {
+			write(file, data);
+			Collection fromFile = mimeUtil.getMimeTypes(file);
+			InputStream in = new BufferedInputStream(new FileInputStream(file));
+			try {
+				assertEquals(mimeUtil.getMimeTypes(in), fromFile);
+			}finally {
+				in.close();
+			}
+			assertEquals(mimeUtil.getMimeTypes(data), fromFile);
+		}finally {
+			file.delete();
+		}
+	}
+
+	public void testMagicOfBundledCache() throws Exception {
+		OpendesktopMimeDetector mimeDetector = new OpendesktopMimeDetector("src/main/resources/mime.cache");
+		try {
+			// Only the entries of the highest priority that matches are returned
+			assertEquals("[application/zip]", mimeDetector.getMimeTypesByteArray(read(new File("src/test/resources/a.zip"))).toString());
+			assertEquals("[application/x-gzip]", mimeDetector.getMimeTypesByteArray(read(new File("src/test/resources/f.tar.gz"))).toString());
+			assertEquals("[image/png]", mimeDetector.getMimeTypesByteArray(read(new File("src/test/resources/d-png.img"))).toString());
+		}finally {
+			mimeDetector.delete();
+		}
+	}
+
+	public void testMagicRules() throws Exception {
+		MimeCacheBuilder.Matchlet [] children = new MimeCacheBuilder.Matchlet [] {
+				new MimeCacheBuilder.Matchlet(4, 1, "CD", null),
+				new MimeCacheBuilder.Matchlet(4, 1, "EF", null)};
+		File cacheFile = new MimeCacheBuilder()
+				.magic(80, "application/x-high", 0, "HI")
+				.magic(80, "application/x-same", 1, "I")
+				.magic(50, "application/x-low", 0, "H")
+				.magic(50, "application/x-children", new MimeCacheBuilder.Matchlet [] {
+						new MimeCacheBuilder.Matchlet(0, 1, "AB", children)})
+				.magic(40, "application/x-range", new MimeCacheBuilder.Matchlet [] {
+						new MimeCacheBuilder.Matchlet(2, 3, "XY", null)})
+				.write();
+		OpendesktopMimeDetector mimeDetector = new OpendesktopMimeDetector(cacheFile.getAbsolutePath());
+		try {
+			// Entries below the priority of the first match are left out, entries of the same priority are not
+			assertEquals("[application/x-high, application/x-same]", getMagic(mimeDetector, "HI......"));
+			assertEquals("[application/x-low]", getMagic(mimeDetector, "Ho......"));
+
+			// A matchlet with children only matches if one of the children does as well
+			assertEquals("[application/x-children]", getMagic(mimeDetector, "AB..CD.."));
+			assertEquals("[application/x-children]", getMagic(mimeDetector, "AB..EF.."));
+			assertEquals("[]", getMagic(mimeDetector, "AB..GH.."));
+			assertEquals("[]", getMagic(mimeDetector, "..AB..CD"));
+
+			// The value can start at any of the range length positions from the range start, no further
+			assertEquals("[application/x-range]", getMagic(mimeDetector, "..XY...."));
+			assertEquals("[application/x-range]", getMagic(mimeDetector, "....XY.."));
+			assertEquals("[]", getMagic(mimeDetector, ".....XY."));
+			assertEquals("[]", getMagic(mimeDetector, ".XY....."));
+			// and must be within the data
+			assertEquals("[]", getMagic(mimeDetector, "....X"));
+		}finally {
+			mimeDetector.delete();
+		}
+	}
+
+	public void testTypeHierarchy() throws Exception {
+		File cacheFile = new MimeCacheBuilder()
+				.alias("application/x-alias", "application/x-child")
+				.alias("application/x-old-base", "application/x-base")
+				.parent("application/x-child", "application/x-middle")
+				.parent("application/x-middle", "application/x-old-base")
+				.parent("application/x-script", "text/x-shellscript")
+				// A cycle
+				.parent("application/x-a", "application/x-b")
+				.parent("application/x-b", "application/x-a")
+				.write();
+		OpendesktopMimeDetector mimeDetector = new OpendesktopMimeDetector(cacheFile.getAbsolutePath());
+		try {
+			// Ancestors are transitive and aliases are resolved on both sides and in the parent list
+			assertTrue(mimeDetector.isMimeTypeSubclass("application/x-child", "application/x-middle"));
+			assertTrue(mimeDetector.isMimeTypeSubclass("application/x-child", "application/x-base"));
+			assertTrue(mimeDetector.isMimeTypeSubclass("application/x-alias", "application/x-base"));
+			assertTrue(mimeDetector.isMimeTypeSubclass("application/x-child", "application/x-old-base"));
+			assertTrue(mimeDetector.isMimeTypeSubclass("application/x-alias", "application/x-child"));
+			assertFalse(mimeDetector.isMimeTypeSubclass("application/x-base", "application/x-child"));
+			assertFalse(mimeDetector.isMimeTypeSubclass("application/x-child", "application/x-script"));
+			assertTrue(mimeDetector.isMimeTypeSubclass("application/x-child", "application/octet-stream"));
+
+			// text/plain is a super type of any text type, text/* of any type with a text ancestor
+			assertTrue(mimeDetector.isMimeTypeSubclass("text/x-unknown", "text/plain"));
+			assertTrue(mimeDetector.isMimeTypeSubclass("application/x-script", "text/plain"));
+			assertTrue(mimeDetector.isMimeTypeSubclass("application/x-script", "text/*"));
+			assertTrue(mimeDetector.isMimeTypeSubclass("image/x-unknown", "image/*"));
+			assertFalse(mimeDetector.isMimeTypeSubclass("application/x-child", "text/plain"));
+			assertFalse(mimeDetector.isMimeTypeSubclass("application/x-child", "text/*"));
+
+			// A cycle in the parent list neither recurses forever nor adds anything else
+			assertTrue(mimeDetector.isMimeTypeSubclass("application/x-a", "application/x-b"));
+			assertTrue(mimeDetector.isMimeTypeSubclass("application/x-b", "application/x-a"));
+			assertFalse(mimeDetector.isMimeTypeSubclass("application/x-a", "application/x-base"));
+		}finally {
+			mimeDetector.delete();
+		}
+	}
+
+	private static String getMagic(MimeDetector mimeDetector, String data) {
+		return mimeDetector.getMimeTypesByteArray(data.getBytes()).toString();
+	}
+
 	public void testGetMimeTypesURL() {
 		try {
 			assertTrue(mimeUtil.getMimeTypes(new URL("jar:file:src/test/resources/a.zip!/MimeDetector.class")).contains("application/x-java"));
@@ -82,4 +245,162 @@ public class OpendesktopMimeDetectorTest extends TestCase {
 		}
 	}
 
+	public void testSharedBetweenThreads() throws Exception {
+		final MimeDetector mimeDetector = mimeUtil.getMimeDetector("eu.medsea.mimeutil.detector.OpendesktopMimeDetector");
+		final String [] names = new String [] {"abc.txt", "Makefile", "README.log", "abc.anim5", "e.1.3.jar", "x.cur"};
+		final String [] files = new String [] {"src/test/resources/b-jpg.img", "src/test/resources/c-gif.img",
+				"src/test/resources/d-png.img", "src/test/resources/e[xml]"};
+		final byte [][] data = new byte [files.length][];
+		final Collection [] expected = new Collection [names.length + files.length];
+		for(int i = 0; i < names.length; i++) {
+			expected[i] = mimeDetector.getMimeTypes(names[i]);
+		}
+		for(int i = 0; i < files.length; i++) {
+			data[i] = read(new File(files[i]));
+			expected[names.length + i] = mimeDetector.getMimeTypes(data[i]);
+		}
+
+		final List errors = Collections.synchronizedList(new ArrayList());
+		Thread [] threads = new Thread [4];
+		for(int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						for(int j = 0; j < 50; j++) {
+							for(int k = 0; k < names.length; k++) {
+								if(!expected[k].equals(mimeDetector.getMimeTypes(names[k]))) {
+									errors.add("Wrong result for " + names[k]);
+								}
+							}
+							for(int k = 0; k < files.length; k++) {
+								if(!expected[names.length + k].equals(mimeDetector.getMimeTypes(data[k]))) {
+									errors.add("Wrong result for " + files[k]);
+								}
+							}
+						}
+					}catch(Throwable t) {
+						errors.add(t);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for(int i = 0; i < threads.length; i++) {
+			threads[i].join();
+		}
+		assertTrue(errors.toString(), errors.isEmpty());
+	}
+
+	public void testReload() throws Exception {
+		File cacheFile = File.createTempFile("mime", ".cache");
+		cacheFile.deleteOnExit();
+		write(cacheFile, read(new File("src/main/resources/mime.cache")));
+
+		OpendesktopMimeDetector mimeDetector = new OpendesktopMimeDetector(cacheFile.getAbsolutePath());
+		try {
+			byte [] data = read(new File("src/test/resources/d-png.img"));
+			assertEquals("[text/plain]", mimeDetector.getMimeTypesFileName("abc.txt").toString());
+			assertEquals("[image/png]", mimeDetector.getMimeTypesByteArray(data).toString());
+
+			// Rewrite the file with a different cache and reload it as the watcher would
+			byte [] content = read(new MimeCacheBuilder()
+					.suffix(".txt", "text/x-reloaded")
+					.magic(50, "image/x-reloaded", 1, "PNG")
+					.write());
+			cacheFile.delete();
+			write(cacheFile, content);
+			mimeDetector.reload();
+
+			assertEquals("[text/x-reloaded]", mimeDetector.getMimeTypesFileName("abc.txt").toString());
+			assertEquals("[image/x-reloaded]", mimeDetector.getMimeTypesByteArray(data).toString());
+			String dump = mimeDetector.dump();
+
+			// A file that can't be read leaves the current content in use
+			cacheFile.delete();
+			byte [] truncated = new byte [16];
+			System.arraycopy(content, 0, truncated, 0, truncated.length);
+			write(cacheFile, truncated);
+			mimeDetector.reload();
+			assertEquals("[text/x-reloaded]", mimeDetector.getMimeTypesFileName("abc.txt").toString());
+			assertEquals("[image/x-reloaded]", mimeDetector.getMimeTypesByteArray(data).toString());
+			assertEquals(dump, mimeDetector.dump());
+		}finally {
+			mimeDetector.delete();
+		}
+	}
+
+	public void testMergedCaches() throws Exception {
+		byte [] content = read(new File("src/main/resources/mime.cache"));
+		File [] cacheFiles = new File [2];
+		String [] paths = new String [cacheFiles.length + 1];
+		for(int i = 0; i < cacheFiles.length; i++) {
+			cacheFiles[i] = File.createTempFile("mime", ".cache");
+			cacheFiles[i].deleteOnExit();
+			write(cacheFiles[i], content);
+			paths[i] = cacheFiles[i].getAbsolutePath();
+		}
+		// Files that don't exist are left out
+		paths[cacheFiles.length] = new File(cacheFiles[0].getParentFile(), "missing-mime.cache").getAbsolutePath();
+
+		OpendesktopMimeDetector single = new OpendesktopMimeDetector(paths[0]);
+		OpendesktopMimeDetector merged = new OpendesktopMimeDetector(paths);
+		try {
+			// The same cache twice must give exactly the same results as once
+			assertEquals(single.getDescription(), merged.getDescription());
+			assertEquals(single.getHeaderLength(), merged.getHeaderLength());
+			String [] names = new String [] {"abc.txt", "Makefile", "makefile", "README.log", "abc.anim5", "e.1.3.jar", "x.cur", "ABC.TXT", "x.tar.gz", "README"};
+			for(int i = 0; i < names.length; i++) {
+				assertEquals(names[i], single.getMimeTypes(names[i]), merged.getMimeTypes(names[i]));
+			}
+			String [] files = new String [] {"src/test/resources/b-jpg.img", "src/test/resources/c-gif.img",
+					"src/test/resources/d-png.img", "src/test/resources/e[xml]", "src/test/resources/e.xml", "src/test/resources/a.zip"};
+			for(int i = 0; i < files.length; i++) {
+				assertEquals(files[i], single.getMimeTypes(new File(files[i])), merged.getMimeTypes(new File(files[i])));
+			}
+		}finally {
+			single.delete();
+			merged.delete();
+		}
+	}
+
+	public void testInstancesShareWatcherThread() {
+		// Make sure the shared thread has been started
+		new OpendesktopMimeDetector().delete();
+		int threads = Thread.activeCount();
+		OpendesktopMimeDetector [] mimeDetectors = new OpendesktopMimeDetector [5];
+		for(int i = 0; i < mimeDetectors.length; i++) {
+			mimeDetectors[i] = new OpendesktopMimeDetector();
+		}
+		assertEquals(threads, Thread.activeCount());
+		for(int i = 0; i < mimeDetectors.length; i++) {
+			mimeDetectors[i].delete();
+		}
+	}
+
+	private static void write(File file, byte [] data) throws Exception {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		}finally {
+			out.close();
+		}
+	}
+
+	private static byte [] read(File file) throws Exception {
+		byte [] data = new byte [(int)file.length()];
+		InputStream in = new FileInputStream(file);
+		try {
+			int offset = 0;
+			while(offset < data.length) {
+				int len = in.read(data, offset, data.length - offset);
+				if(len < 0) {
+					break;
+				}
+				offset += len;
+			}
+		}finally {
+			in.close();
+		}
+		return data;
+	}
 }
@@ -2,8 +2,10 @@ package eu.medsea.mimeutil.detector;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 // import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -15,7 +17,9 @@ import eu.medsea.mimeutil.MimeUtil;
 import eu.medsea.mimeutil.MimeUtil2;
 import eu.medsea.mimeutil.TextMimeDetector;
 import eu.medsea.mimeutil.TextMimeType;
+import eu.medsea.mimeutil.handler.TextContentMimeHandler;
 import eu.medsea.mimeutil.handler.TextMimeHandler;
+import eu.medsea.util.EncodingClassifier;
 import eu.medsea.util.EncodingGuesser;
 import eu.medsea.util.StringUtil;
 
@@ -209,6 +213,28 @@ public class TextMimeDetectorTest extends TestCase {
 		assertTrue(c.contains("image/svg+xml"));
 	}
 
+	public void testContentMimeHandler() {
+		PrefixHandler comment = new PrefixHandler('#', 5);
+		PrefixHandler xml = new PrefixHandler('<', 5);
+		TextMimeDetector.registerTextMimeHandler(comment);
+		TextMimeDetector.registerTextMimeHandler(xml);
+		try {
+			Collection c = mimeUtil.getMimeTypes("src/test/resources/e.xml");
+			assertTrue(c.contains("text/xml"));
+			// Turned down from the bytes so never handled
+			assertNull(comment.content);
+			// Only the characters asked for are handed over
+			assertEquals("<?xml", xml.content);
+
+			// Can still be called with the whole content as a String
+			xml.handle(new TextMimeType("text/plain", "UTF-8"), "<html></html>");
+			assertEquals("<html", xml.content);
+		}finally {
+			TextMimeDetector.unregisterTextMimeHandler(comment);
+			TextMimeDetector.unregisterTextMimeHandler(xml);
+		}
+	}
+
 	/* We will add here new test for URL's that do not require an Internet connection
 	 * so that the build will always work.
 	public void testGetMimeTypesURL() {
@@ -263,6 +289,33 @@ public class TextMimeDetectorTest extends TestCase {
 		}
 	}
 
+	class PrefixHandler extends TextContentMimeHandler {
+		private byte first;
+		private int length;
+		String content;
+
+		PrefixHandler(char first, int length) {
+			this.first = (byte)first;
+			this.length = length;
+		}
+
+		public int getContentLength() {
+			return length;
+		}
+
+		public boolean accepts(TextMimeType mimeType, ByteBuffer content) {
+			return content.hasRemaining() && content.get(0) == first;
+		}
+
+		public boolean handle(TextMimeType mimeType, CharSequence content) {
+			this.content = content.toString();
+			if("<?xml".equals(this.content)) {
+				mimeType.setMimeType(new MimeType("text/xml"));
+			}
+			return false;
+		}
+	}
+
 	public void testUnicodeAndWestern() {
 		String[] encodings = {"UTF-8", "ISO-8859-1", "ISO-8859-15", "ASCII"};
 
@@ -275,4 +328,88 @@ public class TextMimeDetectorTest extends TestCase {
 		assertEquals(MimeUtil.getMimeTypes(new File("src/test/resources/textfiles/unicode")), "text/plain;charset=UTF-8");
 	}
 
+	public void testNonLatinUTF16() throws Exception {
+		// Every other byte of Cyrillic and Greek UTF-16 is a control character but the text has no NULL
+		StringBuffer cyrillic = new StringBuffer();
+		StringBuffer greek = new StringBuffer();
+		for(int i = 0; i < 100; i++) {
+			cyrillic.append((char)(0x0430 + (i % 32)));
+			greek.append((char)(0x03B1 + (i % 24)));
+		}
+		assertEquals(mimeUtil.getMimeTypes(cyrillic.toString().getBytes("UTF-16")), "text/plain;charset=UTF-16BE");
+		assertEquals(mimeUtil.getMimeTypes(greek.toString().getBytes("UTF-16")), "text/plain;charset=UTF-16BE");
+	}
+
+	public void testMostLikelyEncoding() throws Exception {
+		// With no preferred encodings and all encodings supported by the JVM the classifier picks the encoding
+		TextMimeDetector.setPreferredEncodings(new String [0]);
+		try {
+			assertEquals(mimeUtil.getMimeTypes(new File("src/test/resources/textfiles/unicode")), "text/plain;charset=UTF-8");
+			if(!"UTF-8".equals(EncodingGuesser.getDefaultEncoding())) {
+				assertEquals(mimeUtil.getMimeTypes(new File("src/test/resources/textfiles/western")), "text/plain;charset=windows-1252");
+			}
+
+			byte [] data = "caf\u00e9 \u20ac".getBytes("UTF-8");
+			EncodingClassifier classifier = new EncodingClassifier(data, data.length);
+			Collection possibleEncodings = classifier.getPossibleEncodings();
+			assertTrue(possibleEncodings.contains("UTF-8"));
+			assertFalse(possibleEncodings.contains("US-ASCII"));
+			assertEquals("UTF-8", classifier.getPreferredEncoding(possibleEncodings));
+
+			// A truncated last character is allowed
+			classifier = new EncodingClassifier(data, data.length - 1);
+			assertEquals("UTF-8", classifier.getPreferredEncoding(classifier.getPossibleEncodings()));
+
+			// 0x81 is not used by windows-1252
+			data = new byte [] {'c', 'a', 'f', (byte)0xE9, (byte)0x81, '!'};
+			classifier = new EncodingClassifier(data, data.length);
+			possibleEncodings = classifier.getPossibleEncodings();
+			assertFalse(possibleEncodings.contains("UTF-8"));
+			assertFalse(possibleEncodings.contains("windows-1252"));
+			assertEquals("ISO-8859-1", classifier.getPreferredEncoding(possibleEncodings));
+
+			data = "text".getBytes("UTF-16LE");
+			classifier = new EncodingClassifier(data, data.length);
+			assertEquals("UTF-16LE", classifier.getPreferredEncoding(classifier.getPossibleEncodings()));
+		}finally {
+			TextMimeDetector.setPreferredEncodings(new String [] {"UTF-16", "UTF-8", "ISO-8859-1", "windows-1252", "US-ASCII"});
+		}
+	}
+
+	public void testSampling() throws Exception {
+		TextMimeDetector.setPreferredEncodings(new String [] {"UTF-8", "ISO-8859-1"});
+		File file = File.createTempFile("mimeutil", ".txt");
+		try {
+			// The head is ASCII so only the tail shows that this is not UTF-8
+			StringBuffer text = new StringBuffer();
+			while(text.length() < 5000) {
+				text.append("id,name,price\n");
+			}
+			text.append("1,caf\u00e9,2.50\n");
+			write(file, text.toString().getBytes("ISO-8859-1"));
+			assertEquals(mimeUtil.getMimeTypes(file), "text/plain;charset=ISO-8859-1");
+
+			TextMimeDetector.setSampling(0, 0);
+			assertEquals(mimeUtil.getMimeTypes(file), "text/plain;charset=UTF-8");
+			TextMimeDetector.setSampling(1024, 3072);
+
+			// Binary data at the end of the file
+			write(file, (text.toString() + "\u0000\u0000").getBytes("ISO-8859-1"));
+			assertFalse(mimeUtil.getMimeTypes(file).contains("text/plain"));
+		}finally {
+			TextMimeDetector.setSampling(1024, 3072);
+			TextMimeDetector.setPreferredEncodings(new String [] {"UTF-16", "UTF-8", "ISO-8859-1", "windows-1252", "US-ASCII"});
+			file.delete();
+		}
+	}
+
+	private static void write(File file, byte [] data) throws Exception {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		}finally {
+			out.close();
+		}
+	}
+
 }
\ No newline at end of file